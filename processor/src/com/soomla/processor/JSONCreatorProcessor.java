@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a <code>JSONFactory.Creator</code> for every class marked with
+ * <code>@JSONCreatable</code>, calling its <code>JSONObject</code> constructor directly.
+ * The creator of <code>com.example.MyReward</code> is <code>com.example.MyReward_JSONCreator</code>,
+ * so modules adding classes to the same package don't generate the same class.
+ */
+@SupportedAnnotationTypes(JSONCreatorProcessor.ANNOTATION)
+public class JSONCreatorProcessor extends AbstractProcessor {
+
+    static final String ANNOTATION = "com.soomla.util.JSONCreatable";
+    // must match JSONFactory's GENERATED_SUFFIX
+    static final String GENERATED_SUFFIX = "_JSONCreator";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ANNOTATION);
+        if (annotation == null) {
+            return false;
+        }
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            if (isCreatable(element)) {
+                generate((TypeElement) element);
+            }
+        }
+        return true;
+    }
+
+    private boolean isCreatable(Element element) {
+        if (element.getKind() != ElementKind.CLASS) {
+            error(element, "@JSONCreatable can only mark classes");
+            return false;
+        }
+        TypeElement type = (TypeElement) element;
+        if (type.getModifiers().contains(Modifier.ABSTRACT) || !type.getModifiers().contains(Modifier.PUBLIC)
+                || type.getNestingKind().isNested()) {
+            error(element, "@JSONCreatable classes must be public, top level and not abstract");
+            return false;
+        }
+        for (ExecutableElement ctor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            List<? extends VariableElement> params = ctor.getParameters();
+            if (ctor.getModifiers().contains(Modifier.PUBLIC) && params.size() == 1
+                    && params.get(0).asType().toString().equals("org.json.JSONObject")) {
+                return true;
+            }
+        }
+        error(element, "@JSONCreatable classes must have a public constructor taking a JSONObject");
+        return false;
+    }
+
+    private void generate(TypeElement type) {
+        String qualifiedName = type.getQualifiedName() + GENERATED_SUFFIX;
+        try {
+            Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter();
+            try {
+                writer.write(source(packageOf(type).getQualifiedName().toString(), type));
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            error(type, "Unable to generate " + qualifiedName + ": " + e.getMessage());
+        }
+    }
+
+    private static String source(String packageName, TypeElement type) {
+        String name = type.getQualifiedName().toString();
+        StringBuilder out = new StringBuilder();
+        out.append("// Generated by ").append(JSONCreatorProcessor.class.getName()).append(", do not edit.\n");
+        if (!packageName.isEmpty()) {
+            out.append("package ").append(packageName).append(";\n\n");
+        }
+        out.append("import com.soomla.util.JSONFactory;\n\n");
+        out.append("import org.json.JSONException;\n");
+        out.append("import org.json.JSONObject;\n\n");
+        out.append("/**\n * Creates <code>").append(type.getSimpleName())
+                .append("</code> objects without reflection, see <code>JSONCreatable</code>.\n */\n");
+        out.append("public final class ").append(type.getSimpleName()).append(GENERATED_SUFFIX)
+                .append(" implements JSONFactory.Creator<").append(name).append("> {\n\n");
+        out.append("    @Override\n");
+        out.append("    public ").append(name).append(" create(JSONObject jsonObject) throws JSONException {\n");
+        out.append("        return new ").append(name).append("(jsonObject);\n");
+        out.append("    }\n");
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private static PackageElement packageOf(Element element) {
+        while (element.getKind() != ElementKind.PACKAGE) {
+            element = element.getEnclosingElement();
+        }
+        return (PackageElement) element;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla;
+
+import java.util.TimeZone;
+
+/**
+ * The source of the current time and time zone for schedules and rewards.
+ * <code>Schedule</code>, <code>Reward</code> and <code>RewardStorage</code> all
+ * use the default clock, which can be replaced with <code>setDefault</code>
+ * (e.g. a <code>ManualClock</code> for simulations and tests).
+ */
+public abstract class Clock {
+
+    /**
+     * @return the current time in millis since the epoch
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * @return the time zone in which recurring schedules are evaluated
+     */
+    public abstract TimeZone getTimeZone();
+
+    /**
+     * Retrieves the clock used by schedules and rewards.
+     *
+     * @return the default clock
+     */
+    public static Clock getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Replaces the clock used by schedules and rewards.
+     *
+     * @param clock the clock to use
+     */
+    public static void setDefault(Clock clock) {
+        sDefault = clock != null ? clock : new SystemTimeClock();
+    }
+
+    /**
+     * Retrieves the device's current time zone, as <code>TimeZone.getDefault</code>.
+     * <code>TimeZone.getDefault</code> returns a new copy on every call, so the zone is
+     * cached and checked again only once a minute, or right
+     * after <code>onDeviceTimeZoneChanged</code>.  The same instance is returned while
+     * the zone doesn't change, so schedules can keep what they computed for it.
+     *
+     * @return the device's time zone
+     */
+    protected static TimeZone deviceTimeZone() {
+        TimeZone cached = sDeviceTimeZone;
+        long now = System.nanoTime();
+        if (cached != null && now - sDeviceTimeZoneCheckedAt < TIME_ZONE_CHECK_NANOS) {
+            return cached;
+        }
+        TimeZone current = TimeZone.getDefault();
+        if (cached != null && cached.getID().equals(current.getID())) {
+            current = cached;
+        }
+        sDeviceTimeZone = current;
+        sDeviceTimeZoneCheckedAt = now;
+        return current;
+    }
+
+    /**
+     * Makes the clocks that follow the device's time zone check it on their next read.
+     * Called when the device's time zone is changed (<code>ACTION_TIMEZONE_CHANGED</code>).
+     */
+    public static void onDeviceTimeZoneChanged() {
+        sDeviceTimeZoneCheckedAt = System.nanoTime() - TIME_ZONE_CHECK_NANOS;
+    }
+
+    /**
+     * The system's clock, in the device's time zone (or a given time zone).
+     */
+    public static class SystemTimeClock extends Clock {
+
+        /**
+         * Constructor, for a clock that follows the device's time zone as it changes.
+         */
+        public SystemTimeClock() {
+            this(null);
+        }
+
+        /**
+         * Constructor
+         *
+         * @param timeZone the clock's time zone, or <code>null</code> to follow the device's
+         */
+        public SystemTimeClock(TimeZone timeZone) {
+            mTimeZone = timeZone;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public TimeZone getTimeZone() {
+            return mTimeZone != null ? mTimeZone : deviceTimeZone();
+        }
+
+        private final TimeZone mTimeZone;
+    }
+
+    /**
+     * The system's clock, read by a background thread once per resolution period
+     * and cached.  Tight loops reading it don't make a system call per read,
+     * at the cost of being up to one resolution period behind.
+     */
+    public static class CoarseClock extends Clock {
+
+        /**
+         * Constructor, for a clock that follows the device's time zone as it changes.
+         */
+        public CoarseClock(long resolutionMillis) {
+            this(resolutionMillis, null);
+        }
+
+        /**
+         * Constructor
+         *
+         * @param resolutionMillis how often the clock's time is updated
+         * @param timeZone the clock's time zone, or <code>null</code> to follow the device's
+         */
+        public CoarseClock(final long resolutionMillis, TimeZone timeZone) {
+            mTimeZone = timeZone;
+            mNow = System.currentTimeMillis();
+            mTicker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        try {
+                            Thread.sleep(resolutionMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        mNow = System.currentTimeMillis();
+                    }
+                }
+            }, "SOOMLA CoarseClock");
+            mTicker.setDaemon(true);
+            mTicker.start();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public TimeZone getTimeZone() {
+            return mTimeZone != null ? mTimeZone : deviceTimeZone();
+        }
+
+        /**
+         * Stops updating the clock's time.
+         */
+        public void stop() {
+            mTicker.interrupt();
+        }
+
+        private final TimeZone mTimeZone;
+        private final Thread mTicker;
+        private volatile long mNow;
+    }
+
+    /**
+     * A clock that moves only when told to, for simulations and tests.
+     */
+    public static class ManualClock extends Clock {
+
+        public ManualClock(long nowMillis, TimeZone timeZone) {
+            mNow = nowMillis;
+            mTimeZone = timeZone;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public TimeZone getTimeZone() {
+            return mTimeZone;
+        }
+
+        public void setTime(long nowMillis) {
+            mNow = nowMillis;
+        }
+
+        public void advance(long millis) {
+            mNow += millis;
+        }
+
+        private final TimeZone mTimeZone;
+        private volatile long mNow;
+    }
+
+
+    /** Private Members **/
+
+    // how long the device's time zone is used before checking it again
+    private static final long TIME_ZONE_CHECK_MILLIS = 60 * 1000;
+    private static final long TIME_ZONE_CHECK_NANOS = TIME_ZONE_CHECK_MILLIS * 1000 * 1000;
+
+    private static volatile Clock sDefault = new SystemTimeClock();
+    private static volatile TimeZone sDeviceTimeZone;
+    private static volatile long sDeviceTimeZoneCheckedAt;
+}
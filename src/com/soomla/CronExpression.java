@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A cron-style recurrence: "minute hour day-of-month month day-of-week".
+ * Each field is <code>*</code>, a value, a range (<code>9-17</code>), a step
+ * (<code>*&#47;15</code>, <code>0-30/10</code>) or a comma separated list of those.
+ * Months and days of the week may also be given by name (<code>JAN</code>, <code>MON</code>),
+ * and Sunday is both 0 and 7.  <code>@hourly</code>, <code>@daily</code>,
+ * <code>@weekly</code>, <code>@monthly</code> and <code>@yearly</code> are accepted too.
+ *
+ * As in cron, if both the day of the month and the day of the week are restricted,
+ * a day matches if either of them does.
+ *
+ * The expression is compiled into a bitmask per field, so matching a time is a few bit tests.
+ */
+public class CronExpression {
+
+    /**
+     * Parses the given expression.
+     *
+     * @param expression the expression to parse
+     * @return the parsed expression, or <code>null</code> if it's invalid
+     */
+    public static CronExpression parse(String expression) {
+        if (expression == null) {
+            SoomlaUtils.LogError(TAG, "Cron expression is null");
+            return null;
+        }
+
+        String trimmed = expression.trim();
+        String macro = macro(trimmed);
+        String[] fields = (macro != null ? macro : trimmed).split("\\s+");
+        if (fields.length != 5) {
+            SoomlaUtils.LogError(TAG, "Cron expression should have 5 fields: " + expression);
+            return null;
+        }
+
+        long minutes = parseField(fields[0], 0, 59, null);
+        long hours = parseField(fields[1], 0, 23, null);
+        long daysOfMonth = parseField(fields[2], 1, 31, null);
+        long months = parseField(fields[3], 1, 12, MONTH_NAMES);
+        long daysOfWeek = parseField(fields[4], 0, 7, DAY_NAMES);
+        if (minutes < 0 || hours < 0 || daysOfMonth < 0 || months < 0 || daysOfWeek < 0) {
+            SoomlaUtils.LogError(TAG, "Invalid cron expression: " + expression);
+            return null;
+        }
+
+        // Sunday is both 0 and 7, and months are kept from bit 0
+        if ((daysOfWeek & (1L << 7)) != 0) {
+            daysOfWeek = (daysOfWeek | 1) & ~(1L << 7);
+        }
+        boolean dayOr = !fields[2].startsWith("*") && !fields[4].startsWith("*");
+        return new CronExpression(trimmed, minutes, (int) hours, daysOfMonth,
+                (int) (months >>> 1), (int) daysOfWeek, dayOr);
+    }
+
+    /**
+     * Checks if the given time matches the expression.
+     *
+     * @param timeMillis the time to check
+     * @param timeZone the time zone in which to check the time's fields
+     * @return <code>true</code> if all fields match, <code>false</code> otherwise
+     */
+    public boolean matches(long timeMillis, TimeZone timeZone) {
+        long local = timeMillis + timeZone.getOffset(timeMillis);
+        return matches(ScheduleEvaluator.minuteOf(local), ScheduleEvaluator.hourOfDayOf(local),
+                ScheduleEvaluator.dayOfMonthOf(local), ScheduleEvaluator.monthOf(local),
+                ScheduleEvaluator.dayOfWeekOf(local) - 1);
+    }
+
+    /**
+     * @param month 1-12
+     * @param dayOfWeek 0-6, 0 is Sunday
+     */
+    boolean matches(int minute, int hourOfDay, int dayOfMonth, int month, int dayOfWeek) {
+        if ((mMinutes & (1L << minute)) == 0 || (mHours & (1 << hourOfDay)) == 0
+                || (mMonths & (1 << (month - 1))) == 0) {
+            return false;
+        }
+        boolean domMatches = (mDaysOfMonth & (1L << dayOfMonth)) != 0;
+        boolean dowMatches = (mDaysOfWeek & (1 << dayOfWeek)) != 0;
+        return mDayOr ? (domMatches || dowMatches) : (domMatches && dowMatches);
+    }
+
+    /**
+     * Maps a time range and a <code>Schedule.Recurrence</code> onto an expression:
+     * the fields the recurrence compares must be within the range's start and end fields.
+     * The hour is compared as in <code>Calendar.HOUR</code> (0-11), so every hour
+     * matches in both halves of the day.
+     *
+     * @param recurrence the recurrence, not <code>NONE</code>
+     * @param start the start of the range, in local time millis
+     * @param end the end of the range, in local time millis
+     */
+    static CronExpression fromRecurrence(Schedule.Recurrence recurrence, long start, long end) {
+        long minutes = bits(ScheduleEvaluator.minuteOf(start), ScheduleEvaluator.minuteOf(end));
+        long hours = ALL_HOURS;
+        long daysOfWeek = ALL_DAYS_OF_WEEK;
+        long daysOfMonth = ALL_DAYS_OF_MONTH;
+        if (recurrence != Schedule.Recurrence.EVERY_HOUR) {
+            long halfDay = bits(ScheduleEvaluator.hourOf(start), ScheduleEvaluator.hourOf(end));
+            hours = halfDay | (halfDay << 12);
+        }
+        if (recurrence == Schedule.Recurrence.EVERY_WEEK || recurrence == Schedule.Recurrence.EVERY_MONTH) {
+            daysOfWeek = bits(ScheduleEvaluator.dayOfWeekOf(start) - 1, ScheduleEvaluator.dayOfWeekOf(end) - 1);
+        }
+        if (recurrence == Schedule.Recurrence.EVERY_MONTH) {
+            daysOfMonth = bits(ScheduleEvaluator.dayOfMonthOf(start), ScheduleEvaluator.dayOfMonthOf(end));
+        }
+        return new CronExpression(null, minutes, (int) hours, daysOfMonth, ALL_MONTHS, (int) daysOfWeek, false);
+    }
+
+    /**
+     * Checks if no time can match the expression.
+     */
+    boolean isEmpty() {
+        boolean noDays = mDayOr ? (mDaysOfMonth == 0 && mDaysOfWeek == 0) : (mDaysOfMonth == 0 || mDaysOfWeek == 0);
+        return mMinutes == 0 || mHours == 0 || mMonths == 0 || noDays;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CronExpression)) {
+            return false;
+        }
+        CronExpression other = (CronExpression) o;
+        return mMinutes == other.mMinutes && mHours == other.mHours
+                && mDaysOfMonth == other.mDaysOfMonth && mMonths == other.mMonths
+                && mDaysOfWeek == other.mDaysOfWeek && mDayOr == other.mDayOr
+                && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (mMinutes ^ (mMinutes >>> 32));
+        result = 31 * result + mHours;
+        result = 31 * result + (int) (mDaysOfMonth ^ (mDaysOfMonth >>> 32));
+        result = 31 * result + mMonths;
+        result = 31 * result + mDaysOfWeek;
+        return 31 * result + toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mExpression != null ? mExpression : "";
+    }
+
+    private CronExpression(String expression, long minutes, int hours, long daysOfMonth,
+                           int months, int daysOfWeek, boolean dayOr) {
+        mExpression = expression;
+        mMinutes = minutes;
+        mHours = hours;
+        mDaysOfMonth = daysOfMonth;
+        mMonths = months;
+        mDaysOfWeek = daysOfWeek;
+        mDayOr = dayOr;
+    }
+
+    private static String macro(String expression) {
+        if (expression.equals("@hourly")) {
+            return "0 * * * *";
+        } else if (expression.equals("@daily") || expression.equals("@midnight")) {
+            return "0 0 * * *";
+        } else if (expression.equals("@weekly")) {
+            return "0 0 * * 0";
+        } else if (expression.equals("@monthly")) {
+            return "0 0 1 * *";
+        } else if (expression.equals("@yearly") || expression.equals("@annually")) {
+            return "0 0 1 1 *";
+        }
+        return null;
+    }
+
+    /**
+     * Parses a single field into a mask with bit <code>v</code> set for every value <code>v</code>.
+     *
+     * @return the mask, or -1 if the field is invalid
+     */
+    private static long parseField(String field, int min, int max, String[] names) {
+        long mask = 0;
+        for (String part : field.split(",")) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = parseValue(part.substring(slash + 1), 1, max, null);
+                part = part.substring(0, slash);
+            }
+
+            int from;
+            int to;
+            if (part.equals("*")) {
+                from = min;
+                to = max;
+            } else {
+                int dash = part.indexOf('-');
+                if (dash >= 0) {
+                    from = parseValue(part.substring(0, dash), min, max, names);
+                    to = parseValue(part.substring(dash + 1), min, max, names);
+                } else {
+                    from = parseValue(part, min, max, names);
+                    // "5/15" means from 5 to the end, every 15
+                    to = slash >= 0 ? max : from;
+                }
+            }
+            if (step < 1 || from < 0 || to < 0 || from > to) {
+                return -1;
+            }
+            for (int value = from; value <= to; value += step) {
+                mask |= 1L << value;
+            }
+        }
+        return mask;
+    }
+
+    private static int parseValue(String value, int min, int max, String[] names) {
+        if (names != null) {
+            String upper = value.toUpperCase(Locale.US);
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(upper)) {
+                    // month names start from 1, day names from 0
+                    return names == MONTH_NAMES ? i + 1 : i;
+                }
+            }
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            return parsed >= min && parsed <= max ? parsed : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long bits(int from, int to) {
+        long mask = 0;
+        for (int value = from; value <= to; value++) {
+            mask |= 1L << value;
+        }
+        return mask;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA CronExpression";
+
+    private static final String[] MONTH_NAMES = { "JAN", "FEB", "MAR", "APR", "MAY", "JUN",
+            "JUL", "AUG", "SEP", "OCT", "NOV", "DEC" };
+    private static final String[] DAY_NAMES = { "SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT" };
+
+    static final long ALL_MINUTES = (1L << 60) - 1;
+    static final int ALL_HOURS = (1 << 24) - 1;
+    static final long ALL_DAYS_OF_MONTH = ((1L << 32) - 1) & ~1L;
+    static final int ALL_MONTHS = (1 << 12) - 1;
+    static final int ALL_DAYS_OF_WEEK = (1 << 7) - 1;
+
+    private final String mExpression;
+
+    // bit v is set for every value v of the field; months from bit 0 (January),
+    // days of the week from bit 0 (Sunday), days of the month from bit 1
+    final long mMinutes;
+    final int mHours;
+    final long mDaysOfMonth;
+    final int mMonths;
+    final int mDaysOfWeek;
+    final boolean mDayOr;
+}
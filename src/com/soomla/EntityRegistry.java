@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla;
+
+import com.soomla.util.InternPool;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry of the application's entities by ID, filled when catalogs are loaded.
+ * Entity IDs are interned, so an ID is held once on the heap however many
+ * entities, handles and lookups refer to it.
+ */
+public class EntityRegistry {
+
+    /**
+     * Retrieves the canonical instance of an entity ID.
+     *
+     * @param id the ID
+     * @return the canonical instance equal to <code>id</code>
+     */
+    public static String internId(String id) {
+        return sIds.intern(id);
+    }
+
+    /**
+     * Registers an entity, replacing any entity registered with the same ID.
+     *
+     * @param entity the entity to register
+     */
+    public static void register(SoomlaEntity<?> entity) {
+        if (entity == null || entity.getID() == null) {
+            SoomlaUtils.LogError(TAG, "Can't register an entity without an ID");
+            return;
+        }
+        SoomlaEntity<?> previous;
+        synchronized (sEntities) {
+            previous = sEntities.put(entity.getID(), entity);
+        }
+        if (previous != null && previous != entity) {
+            SoomlaUtils.LogDebug(TAG, "Replaced the registered entity with ID " + entity.getID());
+        }
+    }
+
+    /**
+     * Registers entities, replacing any entities registered with the same IDs.
+     *
+     * @param entities the entities to register
+     */
+    public static void registerAll(Collection<? extends SoomlaEntity<?>> entities) {
+        for (SoomlaEntity<?> entity : entities) {
+            register(entity);
+        }
+    }
+
+    /**
+     * Retrieves a registered entity.
+     *
+     * @param id the entity's ID
+     * @return the entity, or <code>null</code> if none is registered with <code>id</code>
+     */
+    public static SoomlaEntity<?> get(String id) {
+        return id != null ? sEntities.get(id) : null;
+    }
+
+    /**
+     * Retrieves a registered entity of the given type.
+     *
+     * @param id the entity's ID
+     * @param type the entity's type
+     * @return the entity, or <code>null</code> if none of type <code>type</code>
+     * is registered with <code>id</code>
+     */
+    public static <E extends SoomlaEntity<?>> E get(String id, Class<E> type) {
+        SoomlaEntity<?> entity = get(id);
+        return type.isInstance(entity) ? type.cast(entity) : null;
+    }
+
+    /**
+     * Removes an entity from the registry.
+     *
+     * @param id the entity's ID
+     * @return the removed entity, or <code>null</code> if none was registered with <code>id</code>
+     */
+    public static SoomlaEntity<?> unregister(String id) {
+        return id != null ? sEntities.remove(id) : null;
+    }
+
+    /**
+     * Removes an entity from the registry, if it's still the one registered with its ID.
+     *
+     * @param entity the entity to remove
+     * @return <code>true</code> if <code>entity</code> was removed
+     */
+    public static boolean unregister(SoomlaEntity<?> entity) {
+        if (entity == null || entity.getID() == null) {
+            return false;
+        }
+        // entities are equal by ID, so they're compared by identity, with registering held off
+        synchronized (sEntities) {
+            if (sEntities.get(entity.getID()) != entity) {
+                return false;
+            }
+            sEntities.remove(entity.getID());
+            return true;
+        }
+    }
+
+    /**
+     * Removes all entities from the registry.
+     */
+    public static void clear() {
+        sEntities.clear();
+    }
+
+    public static int size() {
+        return sEntities.size();
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA EntityRegistry";
+
+    private static final InternPool<String> sIds = new InternPool<String>();
+    private static final Map<String, SoomlaEntity<?>> sEntities = new ConcurrentHashMap<String, SoomlaEntity<?>>();
+}
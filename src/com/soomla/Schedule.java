@@ -1,16 +1,26 @@
 package com.soomla;
 
 import com.soomla.data.JSONConsts;
+import com.soomla.util.InternPool;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by refaelos on 05/08/14.
@@ -26,25 +36,113 @@ public class Schedule {
         NONE
     }
 
-    public class DateTimeRange {
-        public Date Start;
-        public Date End;
+    /**
+     * An immutable time range, exclusive on both ends.
+     */
+    public static class DateTimeRange {
+
         public DateTimeRange(Date start, Date end) {
-            Start = start;
-            End = end;
+            this(start.getTime(), end.getTime());
+        }
+
+        public DateTimeRange(long startMillis, long endMillis) {
+            mStartMillis = startMillis;
+            mEndMillis = endMillis;
+            Start = new Date(startMillis);
+            End = new Date(endMillis);
+        }
+
+        public Date getStart() {
+            return new Date(mStartMillis);
+        }
+
+        public Date getEnd() {
+            return new Date(mEndMillis);
+        }
+
+        public long getStartMillis() {
+            return mStartMillis;
+        }
+
+        public long getEndMillis() {
+            return mEndMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DateTimeRange)) {
+                return false;
+            }
+            DateTimeRange other = (DateTimeRange) o;
+            return mStartMillis == other.mStartMillis && mEndMillis == other.mEndMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (mStartMillis ^ (mStartMillis >>> 32)) + (int) (mEndMillis ^ (mEndMillis >>> 32));
         }
+
+        /**
+         * @deprecated use <code>getStart</code>, the range is immutable and changing this has no effect
+         */
+        @Deprecated
+        public final Date Start;
+
+        /**
+         * @deprecated use <code>getEnd</code>, the range is immutable and changing this has no effect
+         */
+        @Deprecated
+        public final Date End;
+
+        private final long mStartMillis;
+        private final long mEndMillis;
     }
 
     public static Schedule AnyTimeOnce() {
-        return new Schedule(1);
+        return intern(new Schedule(1));
     }
 
     public static Schedule AnyTimeLimited(int activationLimit) {
-        return new Schedule(activationLimit);
+        return intern(new Schedule(activationLimit));
     }
 
     public static Schedule AnyTimeUnLimited() {
-        return new Schedule(0);
+        return intern(new Schedule(0));
+    }
+
+    /**
+     * Creates a schedule that approves at most <code>windowLimit</code> activations
+     * in any rolling window of <code>windowMillis</code>, e.g. 1 per 24 hours.
+     */
+    public static Schedule AnyTimeLimitedPerWindow(int windowLimit, long windowMillis) {
+        return intern(new Schedule(null, Recurrence.NONE, null, 0, windowLimit, windowMillis));
+    }
+
+    /**
+     * Retrieves the shared instance of the given schedule.
+     * Schedules are immutable, so equal schedules (e.g. the many rewards given
+     * <code>AnyTimeOnce</code>) can share one instance and its compiled form.
+     *
+     * @param schedule the schedule to intern
+     * @return the shared instance equal to <code>schedule</code>
+     */
+    public static Schedule intern(Schedule schedule) {
+        return sPool.intern(schedule);
+    }
+
+    /**
+     * Generates a <code>Schedule</code> from the given <code>JSONObject</code>,
+     * sharing equal schedules and time ranges with the ones already loaded.
+     *
+     * @param jsonSched a <code>JSONObject</code> representation of the schedule
+     * @return the shared schedule
+     * @throws JSONException if the JSON is not a valid schedule
+     */
+    public static Schedule fromJSONObject(JSONObject jsonSched) throws JSONException {
+        return intern(new Schedule(jsonSched));
     }
 
     public Schedule(int activationLimit)
@@ -54,19 +152,47 @@ public class Schedule {
 
     public Schedule(final Date startTime, final Date endTime, Recurrence recurrence, int activationLimit)
     {
-        List<DateTimeRange> ranges = new ArrayList<DateTimeRange>() {{ add(new DateTimeRange(startTime, endTime)); }};
-        mTimeRanges = ranges;
-
-        mRequiredRecurrence = recurrence;
-        mActivationLimit = activationLimit;
+        this(Collections.singletonList(new DateTimeRange(startTime, endTime)), recurrence, activationLimit);
     }
 
     public Schedule(List<DateTimeRange> timeRanges, Recurrence recurrence, int activationLimit)
     {
-        mTimeRanges = timeRanges;
+        this(timeRanges, recurrence, null, activationLimit, 0, 0);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param timeRanges the time ranges in which the schedule approves, can be <code>null</code>
+     * @param cronRecurrence the recurring times in which the schedule approves
+     * @param activationLimit the number of times the schedule approves, 0 for unlimited
+     */
+    public Schedule(List<DateTimeRange> timeRanges, CronExpression cronRecurrence, int activationLimit)
+    {
+        this(timeRanges, Recurrence.NONE, cronRecurrence, activationLimit, 0, 0);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param timeRanges the time ranges in which the schedule approves, can be <code>null</code>
+     * @param recurrence how the time ranges recur
+     * @param cronRecurrence the recurring times in which the schedule approves, can be <code>null</code>
+     * @param activationLimit the number of times the schedule approves, 0 for unlimited
+     * @param windowLimit the number of times the schedule approves in a rolling window, 0 for unlimited
+     * @param windowMillis the length of the rolling window
+     */
+    public Schedule(List<DateTimeRange> timeRanges, Recurrence recurrence, CronExpression cronRecurrence,
+                    int activationLimit, int windowLimit, long windowMillis)
+    {
+        mTimeRanges = timeRanges != null
+                ? Collections.unmodifiableList(new ArrayList<DateTimeRange>(timeRanges)) : null;
 
         mRequiredRecurrence = recurrence;
+        mCronRecurrence = cronRecurrence;
         mActivationLimit = activationLimit;
+        mWindowLimit = windowLimit;
+        mWindowMillis = windowMillis;
     }
 
     public Schedule(JSONObject jsonSched) throws JSONException
@@ -77,21 +203,32 @@ public class Schedule {
             mRequiredRecurrence = Recurrence.NONE;
         }
 
+        if (jsonSched.has(JSONConsts.SOOM_SCHE_CRON)) {
+            mCronRecurrence = CronExpression.parse(jsonSched.getString(JSONConsts.SOOM_SCHE_CRON));
+            if (mCronRecurrence == null) {
+                throw new JSONException("Invalid " + JSONConsts.SOOM_SCHE_CRON + ": " + jsonSched.getString(JSONConsts.SOOM_SCHE_CRON));
+            }
+        } else {
+            mCronRecurrence = null;
+        }
+
         mActivationLimit = jsonSched.getInt(JSONConsts.SOOM_SCHE_APPROVALS);
+        mWindowLimit = jsonSched.optInt(JSONConsts.SOOM_SCHE_WINDOW_LIMIT, 0);
+        mWindowMillis = jsonSched.optLong(JSONConsts.SOOM_SCHE_WINDOW_MILLIS, 0);
 
-        mTimeRanges = null;
+        List<DateTimeRange> timeRanges = null;
         if (jsonSched.has(JSONConsts.SOOM_SCHE_RANGES)) {
-            mTimeRanges = new ArrayList<DateTimeRange>();
             JSONArray rangesObjs = jsonSched.getJSONArray(JSONConsts.SOOM_SCHE_RANGES);
+            timeRanges = new ArrayList<DateTimeRange>(rangesObjs.length());
             for(int i=0; i<rangesObjs.length(); i++) {
-                long tmpTimeMillis = rangesObjs.getJSONObject(i).getLong(JSONConsts.SOOM_SCHE_RANGE_START);
-                Date start = new Date(tmpTimeMillis);
-                tmpTimeMillis = rangesObjs.getJSONObject(i).getLong(JSONConsts.SOOM_SCHE_RANGE_END);
-                Date end = new Date(tmpTimeMillis);
+                long start = rangesObjs.getJSONObject(i).getLong(JSONConsts.SOOM_SCHE_RANGE_START);
+                long end = rangesObjs.getJSONObject(i).getLong(JSONConsts.SOOM_SCHE_RANGE_END);
 
-                mTimeRanges.add(new DateTimeRange(start, end));
+                timeRanges.add(sRangePool.intern(new DateTimeRange(start, end)));
             }
+            timeRanges = Collections.unmodifiableList(timeRanges);
         }
+        mTimeRanges = timeRanges;
     }
 
     public JSONObject toJSONObject() {
@@ -102,11 +239,15 @@ public class Schedule {
                 jsonObject.put(JSONConsts.SOOM_SCHE_REC, mRequiredRecurrence.ordinal());
             }
 
+            if (mCronRecurrence != null) {
+                jsonObject.put(JSONConsts.SOOM_SCHE_CRON, mCronRecurrence.toString());
+            }
+
             if (mTimeRanges != null) {
                 JSONArray rangesObjs = new JSONArray();
                 for(DateTimeRange range : mTimeRanges) {
-                    long startMillis = range.Start.getTime();
-                    long endMillis = range.End.getTime();
+                    long startMillis = range.getStartMillis();
+                    long endMillis = range.getEndMillis();
                     JSONObject rangeObj = new JSONObject();
                     rangeObj.put(JSONConsts.SOOM_CLASSNAME, SoomlaUtils.getClassName(range));
                     rangeObj.put(JSONConsts.SOOM_SCHE_RANGE_START, startMillis);
@@ -117,6 +258,10 @@ public class Schedule {
             }
 
             jsonObject.put(JSONConsts.SOOM_SCHE_APPROVALS, mActivationLimit);
+            if (mWindowLimit > 0) {
+                jsonObject.put(JSONConsts.SOOM_SCHE_WINDOW_LIMIT, mWindowLimit);
+                jsonObject.put(JSONConsts.SOOM_SCHE_WINDOW_MILLIS, mWindowMillis);
+            }
 
             jsonObject.put(JSONConsts.SOOM_CLASSNAME, SoomlaUtils.getClassName(this));
         } catch (JSONException e) {
@@ -126,98 +271,242 @@ public class Schedule {
         return jsonObject;
     }
 
+    /**
+     * Checks if the schedule approves an activation now, according to
+     * <code>Clock.getDefault()</code>.
+     *
+     * @param activationTimes the number of times already activated
+     * @return <code>true</code> if approved, <code>false</code> otherwise
+     */
     public boolean approve(int activationTimes) {
+        return approve(activationTimes, Clock.getDefault().currentTimeMillis());
+    }
 
-        Date now = new Date();
-
-        if (mActivationLimit < 1 && (mTimeRanges == null || mTimeRanges.size() == 0)) {
-            SoomlaUtils.LogDebug(TAG, "There's no activation limit and no TimeRanges. APPROVED!");
-            return true;
-        }
+    /**
+     * Checks if the schedule approves an activation at the given time.
+     * The schedule is compiled on first use (and again if it was modified),
+     * after which this method doesn't allocate.
+     *
+     * @param activationTimes the number of times already activated
+     * @param nowMillis the time of the activation
+     * @return <code>true</code> if approved, <code>false</code> otherwise
+     */
+    public boolean approve(int activationTimes, long nowMillis) {
+        return getEvaluator().approve(activationTimes, nowMillis);
+    }
 
-        if (mActivationLimit>0 && activationTimes >= mActivationLimit) {
-            SoomlaUtils.LogDebug(TAG, "Activation limit exceeded.");
+    /**
+     * Checks if the schedule approves an activation at the given time,
+     * including its rolling window limit.
+     *
+     * @param activationTimes the number of times already activated
+     * @param timesInWindow the number of activations in the window ending at <code>nowMillis</code>,
+     *                      see <code>RewardHandle.getTimesGivenInWindow</code>
+     * @param nowMillis the time of the activation
+     * @return <code>true</code> if approved, <code>false</code> otherwise
+     */
+    public boolean approve(int activationTimes, int timesInWindow, long nowMillis) {
+        if (hasWindowLimit() && timesInWindow >= mWindowLimit) {
+            SoomlaUtils.LogDebug(TAG, "Rolling window limit exceeded.");
             return false;
         }
+        return approve(activationTimes, nowMillis);
+    }
 
-        if ((mTimeRanges == null || mTimeRanges.size() == 0)) {
-            SoomlaUtils.LogDebug(TAG, "We have an activation limit that was not reached. Also, we don't have any time ranges. APPROVED!");
-            return true;
-        }
+    /**
+     * Finds the first time, at or after the given time, at which the time ranges
+     * (and recurrence) of this schedule approve.  The activation limit is not
+     * considered, as it changes only with activations.
+     *
+     * @param nowMillis the time to start from
+     * @return <code>nowMillis</code> if approved now, the next time approved,
+     * or <code>Long.MAX_VALUE</code> if never approved again
+     */
+    public long nextApprovalTime(long nowMillis) {
+        return getEvaluator().nextApprovalTime(nowMillis);
+    }
 
+    /**
+     * Finds the first time after the given time at which the time ranges
+     * (and recurrence) of this schedule change their approval.
+     * This is the time to re-check a reward which is (or isn't) approved now.
+     * The activation limit is not considered, as it changes only with activations.
+     *
+     * @param nowMillis the time to start from
+     * @return the next time the approval changes, or <code>Long.MAX_VALUE</code> if it never does
+     */
+    public long nextChangeTime(long nowMillis) {
+        return getEvaluator().nextChangeTime(nowMillis);
+    }
 
-        // NOTE: From this point on ... we know that we didn't reach the activation limit AND we have TimeRanges.
-        //		 We'll just make sure the time ranges and the Recurrence copmlies.
+    /**
+     * Checks which of the given times the schedule approves for an activation.
+     * Equivalent to calling <code>approve(activationTimes, timestamps[i])</code>
+     * for each time, without the per-call overhead.  Large inputs are split
+     * across the available cores.
+     *
+     * @param timestamps the times to check
+     * @param activationTimes the number of times already activated
+     * @param out cleared, then bit <code>i</code> is set if <code>timestamps[i]</code> is approved
+     */
+    public void approveAll(long[] timestamps, int activationTimes, BitSet out) {
+        out.clear();
+        approveAll(new ScheduleEvaluator[] { getEvaluator() }, new int[] { activationTimes },
+                timestamps, new BitSet[] { out });
+    }
 
+    /**
+     * Checks which of the given times each of the given schedules approves.
+     * See <code>approveAll(long[], int, BitSet)</code>.
+     *
+     * @param schedules the schedules to check
+     * @param activationTimes the number of times already activated, per schedule
+     * @param timestamps the times to check
+     * @return a <code>BitSet</code> per schedule, with bit <code>i</code> set if
+     * <code>timestamps[i]</code> is approved
+     */
+    public static BitSet[] approveAll(List<Schedule> schedules, int[] activationTimes, long[] timestamps) {
+        ScheduleEvaluator[] evaluators = new ScheduleEvaluator[schedules.size()];
+        BitSet[] out = new BitSet[evaluators.length];
+        for (int i = 0; i < evaluators.length; i++) {
+            evaluators[i] = schedules.get(i).getEvaluator();
+            out[i] = new BitSet(timestamps.length);
+        }
+        approveAll(evaluators, activationTimes, timestamps, out);
+        return out;
+    }
 
-        for(DateTimeRange dtr : mTimeRanges) {
-            if (now.after(dtr.Start) && now.before(dtr.End)) {
-                SoomlaUtils.LogDebug(TAG, "We are just in one of the time spans, it can't get any better then that. APPROVED!");
-                return true;
+    private static void approveAll(final ScheduleEvaluator[] evaluators, final int[] activationTimes,
+                                   final long[] timestamps, BitSet[] out) {
+        int length = timestamps.length;
+        if ((long) length * evaluators.length < PARALLEL_THRESHOLD) {
+            for (int s = 0; s < evaluators.length; s++) {
+                evaluators[s].approveAll(activationTimes[s], timestamps, 0, length, out[s]);
             }
+            return;
         }
 
-        // we don't need to continue if RequiredRecurrence is NONE
-        if (mRequiredRecurrence == Recurrence.NONE) {
-            return false;
+        // chunks are multiples of 64 so each task fills whole words of its own BitSet
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        int chunk = Math.max(MIN_CHUNK, (length / threads + 63) & ~63);
+        List<Callable<BitSet>> tasks = new ArrayList<Callable<BitSet>>();
+        final List<int[]> taskRanges = new ArrayList<int[]>();
+        for (int s = 0; s < evaluators.length; s++) {
+            for (int from = 0; from < length; from += chunk) {
+                final int schedule = s;
+                final int start = from;
+                final int end = Math.min(length, from + chunk);
+                taskRanges.add(new int[] { s, start, end });
+                tasks.add(new Callable<BitSet>() {
+                    @Override
+                    public BitSet call() {
+                        BitSet bits = new BitSet(end);
+                        evaluators[schedule].approveAll(activationTimes[schedule], timestamps, start, end, bits);
+                        return bits;
+                    }
+                });
+            }
         }
 
-        for(DateTimeRange dtr : mTimeRanges) {
-            Calendar nowCalendar = new GregorianCalendar();
-            nowCalendar.setTime(now);
-            Calendar startCalendar = new GregorianCalendar();
-            startCalendar.setTime(dtr.Start);
-            Calendar endCalendar = new GregorianCalendar();
-            endCalendar.setTime(dtr.End);
-            if (nowCalendar.get(Calendar.MINUTE) >= startCalendar.get(Calendar.MINUTE) &&
-                    nowCalendar.get(Calendar.MINUTE) <= endCalendar.get(Calendar.MINUTE)) {
-                SoomlaUtils.LogDebug(TAG, "Now is in one of the time ranges' minutes span.");
-
-                if (mRequiredRecurrence == Recurrence.EVERY_HOUR) {
-                    SoomlaUtils.LogDebug(TAG, "It's a EVERY_HOUR recurrence. APPROVED!");
-                    return true;
+        // a chunk that couldn't be evaluated in parallel is evaluated on the calling thread,
+        // so the result is always complete (and an error in the evaluation reaches the caller)
+        List<Future<BitSet>> results = null;
+        boolean interrupted = false;
+        try {
+            results = getBatchExecutor().invokeAll(tasks);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            int[] range = taskRanges.get(i);
+            BitSet bits = null;
+            if (results != null && !interrupted) {
+                try {
+                    bits = results.get(i).get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    SoomlaUtils.LogWarning(TAG, "An error occurred while approving schedules in parallel, "
+                            + "approving on this thread. " + e.getCause());
                 }
+            }
+            if (bits != null) {
+                out[range[0]].or(bits);
+            } else {
+                evaluators[range[0]].approveAll(activationTimes[range[0]], timestamps, range[1], range[2], out[range[0]]);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                if (nowCalendar.get(Calendar.HOUR) >= startCalendar.get(Calendar.HOUR) &&
-                        nowCalendar.get(Calendar.HOUR) <= endCalendar.get(Calendar.HOUR)) {
-                    SoomlaUtils.LogDebug(TAG, "Now is in one of the time ranges' hours span.");
-
-                    if (mRequiredRecurrence == Recurrence.EVERY_DAY) {
-                        SoomlaUtils.LogDebug(TAG, "It's a EVERY_DAY recurrence. APPROVED!");
-                        return true;
-                    }
-
-                    if (nowCalendar.get(Calendar.DAY_OF_WEEK) >= startCalendar.get(Calendar.DAY_OF_WEEK)
-                            && nowCalendar.get(Calendar.DAY_OF_WEEK) <= endCalendar.get(Calendar.DAY_OF_WEEK)) {
-                        SoomlaUtils.LogDebug(TAG, "Now is in one of the time ranges' day-of-week span.");
-
-                        if (mRequiredRecurrence == Recurrence.EVERY_WEEK) {
-                            SoomlaUtils.LogDebug(TAG, "It's a EVERY_WEEK recurrence. APPROVED!");
-                            return true;
+    private static synchronized ExecutorService getBatchExecutor() {
+        if (sBatchExecutor == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "SOOMLA Schedule");
+                            thread.setDaemon(true);
+                            return thread;
                         }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            sBatchExecutor = pool;
+        }
+        return sBatchExecutor;
+    }
 
-                        if (nowCalendar.get(Calendar.DAY_OF_MONTH) >= startCalendar.get(Calendar.DAY_OF_MONTH)
-                                && nowCalendar.get(Calendar.DAY_OF_MONTH) <= endCalendar.get(Calendar.DAY_OF_MONTH)) {
-                            SoomlaUtils.LogDebug(TAG, "Now is in one of the time ranges' days span.");
-
-                            if (mRequiredRecurrence == Recurrence.EVERY_MONTH) {
-                                SoomlaUtils.LogDebug(TAG, "It's a EVERY_MONTH recurrence. APPROVED!");
-                                return true;
-                            }
-                        }
-                    }
-                }
-            }
+    ScheduleEvaluator getEvaluator() {
+        // the schedule is immutable, only the clock's time zone can change
+        ScheduleEvaluator evaluator = mEvaluator;
+        TimeZone timeZone = Clock.getDefault().getTimeZone();
+        if (evaluator == null || evaluator.getTimeZone() != timeZone) {
+            evaluator = new ScheduleEvaluator(mTimeRanges, mRequiredRecurrence, mCronRecurrence,
+                    mActivationLimit, timeZone);
+            mEvaluator = evaluator;
+        }
+        return evaluator;
+    }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
         }
+        if (!(o instanceof Schedule)) {
+            return false;
+        }
+        Schedule other = (Schedule) o;
+        return mActivationLimit == other.mActivationLimit
+                && mWindowLimit == other.mWindowLimit
+                && mWindowMillis == other.mWindowMillis
+                && mRequiredRecurrence == other.mRequiredRecurrence
+                && (mCronRecurrence != null ? mCronRecurrence.equals(other.mCronRecurrence) : other.mCronRecurrence == null)
+                && (mTimeRanges != null ? mTimeRanges.equals(other.mTimeRanges) : other.mTimeRanges == null);
+    }
 
-        return false;
+    @Override
+    public int hashCode() {
+        int result = mActivationLimit;
+        result = 31 * result + mWindowLimit;
+        result = 31 * result + (int) (mWindowMillis ^ (mWindowMillis >>> 32));
+        result = 31 * result + (mRequiredRecurrence != null ? mRequiredRecurrence.hashCode() : 0);
+        result = 31 * result + (mCronRecurrence != null ? mCronRecurrence.hashCode() : 0);
+        result = 31 * result + (mTimeRanges != null ? mTimeRanges.hashCode() : 0);
+        return result;
     }
 
     public Recurrence getRequiredRecurrence() {
         return mRequiredRecurrence;
     }
 
+    public CronExpression getCronRecurrence() {
+        return mCronRecurrence;
+    }
+
     public List<DateTimeRange> getTimeRanges() {
         return mTimeRanges;
     }
@@ -226,8 +515,49 @@ public class Schedule {
         return mActivationLimit;
     }
 
-    public Recurrence mRequiredRecurrence;
-    public List<DateTimeRange> mTimeRanges;
-    public int mActivationLimit;
+    public boolean hasWindowLimit() {
+        return mWindowLimit > 0 && mWindowMillis > 0;
+    }
+
+    public int getWindowLimit() {
+        return mWindowLimit;
+    }
+
+    public long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    private static final InternPool<Schedule> sPool = new InternPool<Schedule>();
+    private static final InternPool<DateTimeRange> sRangePool = new InternPool<DateTimeRange>();
+
+    /**
+     * @deprecated use <code>getRequiredRecurrence</code>, schedules are immutable
+     */
+    @Deprecated
+    public final Recurrence mRequiredRecurrence;
+
+    /**
+     * @deprecated use <code>getTimeRanges</code>, schedules are immutable
+     */
+    @Deprecated
+    public final List<DateTimeRange> mTimeRanges;
+
+    /**
+     * @deprecated use <code>getActivationLimit</code>, schedules are immutable
+     */
+    @Deprecated
+    public final int mActivationLimit;
+
+    private final CronExpression mCronRecurrence;
+    private final int mWindowLimit;
+    private final long mWindowMillis;
+
+    // batches with fewer evaluations than this run on the calling thread
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final int MIN_CHUNK = 1 << 12;
+    private static ExecutorService sBatchExecutor;
+
+    // the compiled form, shared by all users of this (interned) schedule
+    private volatile ScheduleEvaluator mEvaluator;
 
 }
@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * A <code>Schedule</code> compiled into primitive arrays.
+ * Absolute time ranges are sorted for a binary search, and recurrences are
+ * compiled into field bitmasks (see <code>CronExpression</code>), so
+ * <code>approve</code> doesn't allocate.
+ *
+ * Calendar fields are computed with integer arithmetic in the given time zone,
+ * matching the fields of a <code>GregorianCalendar</code> in that zone.
+ */
+final class ScheduleEvaluator {
+
+    ScheduleEvaluator(List<Schedule.DateTimeRange> timeRanges, Schedule.Recurrence recurrence,
+                      CronExpression cron, int activationLimit, TimeZone timeZone) {
+        if (recurrence == null) {
+            recurrence = Schedule.Recurrence.NONE;
+        }
+        mActivationLimit = activationLimit;
+        mTimeZone = timeZone;
+
+        int count = timeRanges != null ? timeRanges.size() : 0;
+        mStarts = new long[count];
+        mEnds = new long[count];
+        mMaxEnds = new long[count];
+
+        // a recurrence repeats the fields of each range, a cron expression is one more mask
+        int masks = (recurrence != Schedule.Recurrence.NONE ? count : 0) + (cron != null ? 1 : 0);
+        mMinuteMasks = new long[masks];
+        mHourMasks = new int[masks];
+        mDayOfMonthMasks = new long[masks];
+        mMonthMasks = new int[masks];
+        mDayOfWeekMasks = new int[masks];
+        mDayOr = new boolean[masks];
+
+        long[][] sorted = new long[count][];
+        for (int i = 0; i < count; i++) {
+            Schedule.DateTimeRange range = timeRanges.get(i);
+            sorted[i] = new long[] { range.getStartMillis(), range.getEndMillis() };
+
+            // recurrence checks go over the ranges in their original order
+            if (recurrence != Schedule.Recurrence.NONE) {
+                setMask(i, CronExpression.fromRecurrence(recurrence, toLocal(sorted[i][0]), toLocal(sorted[i][1])));
+            }
+        }
+        if (cron != null) {
+            setMask(masks - 1, cron);
+        }
+        Arrays.sort(sorted, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+            }
+        });
+
+        long maxEnd = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            mStarts[i] = sorted[i][0];
+            mEnds[i] = sorted[i][1];
+            maxEnd = Math.max(maxEnd, mEnds[i]);
+            mMaxEnds[i] = maxEnd;
+        }
+    }
+
+    /**
+     * See <code>Schedule.approve</code>
+     */
+    boolean approve(int activationTimes, long nowMillis) {
+        boolean unrestricted = mStarts.length == 0 && mMinuteMasks.length == 0;
+
+        if (mActivationLimit < 1 && unrestricted) {
+            SoomlaUtils.LogDebug(TAG, "There's no activation limit and no TimeRanges. APPROVED!");
+            return true;
+        }
+
+        if (mActivationLimit > 0 && activationTimes >= mActivationLimit) {
+            SoomlaUtils.LogDebug(TAG, "Activation limit exceeded.");
+            return false;
+        }
+
+        if (unrestricted) {
+            SoomlaUtils.LogDebug(TAG, "We have an activation limit that was not reached. Also, we don't have any time ranges. APPROVED!");
+            return true;
+        }
+
+        if (inAbsoluteRange(nowMillis)) {
+            SoomlaUtils.LogDebug(TAG, "We are just in one of the time spans, it can't get any better then that. APPROVED!");
+            return true;
+        }
+
+        // we don't need to continue if there's no recurrence
+        if (mMinuteMasks.length == 0) {
+            return false;
+        }
+
+        return inRecurringRange(nowMillis);
+    }
+
+    /**
+     * Checks if the given time is strictly inside one of the ranges.
+     */
+    boolean inAbsoluteRange(long nowMillis) {
+        // the last range that starts before now, all ranges up to it start before now,
+        // so now is inside one of them iff the furthest end among them is after now
+        int low = 0;
+        int high = mStarts.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mStarts[mid] < nowMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low > 0 && mMaxEnds[low - 1] > nowMillis;
+    }
+
+    /**
+     * Checks if the calendar fields of the given time match one of the recurrence masks.
+     */
+    boolean inRecurringRange(long nowMillis) {
+        long local = toLocal(nowMillis);
+
+        int count = mMinuteMasks.length;
+        for (int i = 0; i < count; i++) {
+            if (recurs(i, local)) {
+                SoomlaUtils.LogDebug(TAG, "Now is in one of the time ranges' recurring span. APPROVED!");
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if the time ranges (and recurrence) approve the given time,
+     * regardless of the activation limit.
+     */
+    boolean isTimeApproved(long nowMillis) {
+        if (mStarts.length == 0 && mMinuteMasks.length == 0) {
+            return true;
+        }
+        return inAbsoluteRange(nowMillis)
+                || (mMinuteMasks.length > 0 && inRecurringRange(nowMillis));
+    }
+
+    /**
+     * See <code>Schedule.approveAll</code>.  Sets the bits of the approved
+     * timestamps between <code>from</code> (inclusive) and <code>to</code> (exclusive).
+     */
+    void approveAll(int activationTimes, long[] timestamps, int from, int to, BitSet out) {
+        if (mActivationLimit > 0 && activationTimes >= mActivationLimit) {
+            return;
+        }
+        if (mStarts.length == 0 && mMinuteMasks.length == 0) {
+            out.set(from, to);
+            return;
+        }
+
+        boolean recurring = mMinuteMasks.length > 0;
+        for (int i = from; i < to; i++) {
+            long time = timestamps[i];
+            if (inAbsoluteRange(time) || (recurring && inRecurringRange(time))) {
+                out.set(i);
+            }
+        }
+    }
+
+    /**
+     * See <code>Schedule.nextApprovalTime</code>
+     */
+    long nextApprovalTime(long nowMillis) {
+        if (isTimeApproved(nowMillis)) {
+            return nowMillis;
+        }
+
+        long next = Long.MAX_VALUE;
+        int count = mStarts.length;
+        for (int i = 0; i < count; i++) {
+            // ranges approve strictly after their start
+            if (mStarts[i] >= nowMillis && mStarts[i] + 1 < mEnds[i]) {
+                next = Math.min(next, mStarts[i] + 1);
+            }
+        }
+        for (int i = 0; i < mMinuteMasks.length; i++) {
+            next = Math.min(next, nextRecurringMatch(i, nowMillis));
+        }
+        return next;
+    }
+
+    /**
+     * See <code>Schedule.nextChangeTime</code>
+     */
+    long nextChangeTime(long nowMillis) {
+        if (mStarts.length == 0 && mMinuteMasks.length == 0) {
+            return Long.MAX_VALUE;
+        }
+        if (!isTimeApproved(nowMillis)) {
+            return nextApprovalTime(nowMillis);
+        }
+
+        // Move to the furthest end of everything that covers the current time,
+        // until nothing covers it.  All spans covering a time are intervals
+        // containing it, so there's no gap before the furthest end.
+        long time = nowMillis;
+        for (int iter = 0; iter < MAX_SEARCH_STEPS; iter++) {
+            long coveredUntil = time;
+            int count = mStarts.length;
+            for (int i = 0; i < count && mStarts[i] < time; i++) {
+                if (mEnds[i] > time) {
+                    coveredUntil = Math.max(coveredUntil, mEnds[i]);
+                }
+            }
+            if (mMinuteMasks.length > 0) {
+                long local = toLocal(time);
+                for (int i = 0; i < mMinuteMasks.length; i++) {
+                    if (recurs(i, local)) {
+                        coveredUntil = Math.max(coveredUntil, recurringSpanEnd(i, time));
+                    }
+                }
+            }
+            if (coveredUntil == time || coveredUntil == Long.MAX_VALUE) {
+                return coveredUntil == time ? time : Long.MAX_VALUE;
+            }
+            time = coveredUntil;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Finds the first time, at or after the given time, at which the given mask matches,
+     * by jumping to the next possible value of the first field that doesn't.
+     */
+    private long nextRecurringMatch(int i, long fromMillis) {
+        if (mMinuteMasks[i] == 0 || mHourMasks[i] == 0 || mMonthMasks[i] == 0
+                || (mDayOr[i] ? (mDayOfMonthMasks[i] == 0 && mDayOfWeekMasks[i] == 0)
+                              : (mDayOfMonthMasks[i] == 0 || mDayOfWeekMasks[i] == 0))) {
+            return Long.MAX_VALUE; // can never match
+        }
+
+        long time = fromMillis;
+        for (int iter = 0; iter < MAX_SEARCH_STEPS; iter++) {
+            long local = toLocal(time);
+            long day = floorDiv(local, DAY_MILLIS);
+            long dayStart = day * DAY_MILLIS;
+            long hourStart = floorDiv(local, HOUR_MILLIS) * HOUR_MILLIS;
+            long nextLocal;
+
+            if ((mMonthMasks[i] & (1 << (monthOf(local) - 1))) == 0) {
+                nextLocal = firstDayOfNextMonth(day) * DAY_MILLIS;
+            } else if (!dayMatches(i, local)) {
+                nextLocal = dayStart + DAY_MILLIS;
+            } else if ((mHourMasks[i] & (1 << hourOfDayOf(local))) == 0) {
+                int later = mHourMasks[i] & (-1 << (hourOfDayOf(local) + 1));
+                nextLocal = later != 0 ? dayStart + Integer.numberOfTrailingZeros(later) * HOUR_MILLIS
+                                       : dayStart + DAY_MILLIS;
+            } else if ((mMinuteMasks[i] & (1L << minuteOf(local))) == 0) {
+                long later = mMinuteMasks[i] & (-1L << (minuteOf(local) + 1));
+                nextLocal = later != 0 ? hourStart + Long.numberOfTrailingZeros(later) * MINUTE_MILLIS
+                                       : hourStart + HOUR_MILLIS;
+            } else {
+                return time;
+            }
+
+            time = nextAfter(time, nextLocal);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Finds the end of the span of time in which the given mask keeps
+     * matching, starting at a time in which it matches.
+     */
+    private long recurringSpanEnd(int i, long fromMillis) {
+        long time = fromMillis;
+        for (int iter = 0; iter < MAX_SEARCH_STEPS; iter++) {
+            // jump to the first minute (or hour, if all minutes match) that doesn't match,
+            // or to the next hour (or day) when the rest of this one matches
+            long local = toLocal(time);
+            long dayStart = floorDiv(local, DAY_MILLIS) * DAY_MILLIS;
+            long hourStart = floorDiv(local, HOUR_MILLIS) * HOUR_MILLIS;
+            long nextLocal;
+
+            long minutesOff = ~mMinuteMasks[i] & CronExpression.ALL_MINUTES & (-1L << (minuteOf(local) + 1));
+            if (minutesOff != 0) {
+                nextLocal = hourStart + Long.numberOfTrailingZeros(minutesOff) * MINUTE_MILLIS;
+            } else if (mMinuteMasks[i] == CronExpression.ALL_MINUTES) {
+                int hoursOff = ~mHourMasks[i] & CronExpression.ALL_HOURS & (-1 << (hourOfDayOf(local) + 1));
+                nextLocal = hoursOff != 0 ? dayStart + Integer.numberOfTrailingZeros(hoursOff) * HOUR_MILLIS
+                                          : dayStart + DAY_MILLIS;
+            } else {
+                nextLocal = hourStart + HOUR_MILLIS;
+            }
+
+            time = nextAfter(time, nextLocal);
+            if (!recurs(i, toLocal(time))) {
+                return time;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private boolean recurs(int i, long local) {
+        return (mMinuteMasks[i] & (1L << minuteOf(local))) != 0
+                && (mHourMasks[i] & (1 << hourOfDayOf(local))) != 0
+                && (mMonthMasks[i] == CronExpression.ALL_MONTHS || (mMonthMasks[i] & (1 << (monthOf(local) - 1))) != 0)
+                && dayMatches(i, local);
+    }
+
+    private boolean dayMatches(int i, long local) {
+        // the day of the month is the costliest field, skip it when it's not restricted
+        boolean domMatches = mDayOfMonthMasks[i] == CronExpression.ALL_DAYS_OF_MONTH
+                || (mDayOfMonthMasks[i] & (1L << dayOfMonthOf(local))) != 0;
+        boolean dowMatches = (mDayOfWeekMasks[i] & (1 << (dayOfWeekOf(local) - 1))) != 0;
+        return mDayOr[i] ? (domMatches || dowMatches) : (domMatches && dowMatches);
+    }
+
+    TimeZone getTimeZone() {
+        return mTimeZone;
+    }
+
+    private long toLocal(long timeMillis) {
+        return timeMillis + mTimeZone.getOffset(timeMillis);
+    }
+
+    /**
+     * Converts the given local time back to UTC, making sure time moves forward
+     * (around DST changes local times may repeat).
+     */
+    private long nextAfter(long timeMillis, long nextLocal) {
+        long next = nextLocal - mTimeZone.getOffset(nextLocal - mTimeZone.getOffset(timeMillis));
+        return next > timeMillis ? next : timeMillis + MINUTE_MILLIS;
+    }
+
+    private void setMask(int i, CronExpression cron) {
+        mMinuteMasks[i] = cron.mMinutes;
+        mHourMasks[i] = cron.mHours;
+        mDayOfMonthMasks[i] = cron.mDaysOfMonth;
+        mMonthMasks[i] = cron.mMonths;
+        mDayOfWeekMasks[i] = cron.mDaysOfWeek;
+        mDayOr[i] = cron.mDayOr;
+    }
+
+    /** Calendar Arithmetic (on local time millis) **/
+
+    static int minuteOf(long local) {
+        return (int) floorMod(floorDiv(local, MINUTE_MILLIS), 60);
+    }
+
+    /**
+     * @return the hour as in <code>Calendar.HOUR</code> (0-11)
+     */
+    static int hourOf(long local) {
+        return (int) (floorMod(floorDiv(local, HOUR_MILLIS), 24) % 12);
+    }
+
+    /**
+     * @return the day of the week as in <code>Calendar.DAY_OF_WEEK</code> (1 is Sunday)
+     */
+    static int dayOfWeekOf(long local) {
+        // the epoch was on a Thursday
+        return (int) floorMod(floorDiv(local, DAY_MILLIS) + 4, 7) + 1;
+    }
+
+    static int hourOfDayOf(long local) {
+        return (int) floorMod(floorDiv(local, HOUR_MILLIS), 24);
+    }
+
+    static int dayOfMonthOf(long local) {
+        // civil from days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = floorDiv(local, DAY_MILLIS) + 719468;
+        long era = floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        return (int) (doy - (153 * mp + 2) / 5 + 1);
+    }
+
+    /**
+     * @return the month, 1 is January
+     */
+    static int monthOf(long local) {
+        long z = floorDiv(local, DAY_MILLIS) + 719468;
+        long doe = z - floorDiv(z, 146097) * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        return (int) (mp < 10 ? mp + 3 : mp - 9);
+    }
+
+    /**
+     * @return the day (since the epoch) of the first day of the month after the given day's
+     */
+    static long firstDayOfNextMonth(long day) {
+        int dayOfMonth = dayOfMonthOf(day * DAY_MILLIS);
+        int month = monthOf(day * DAY_MILLIS);
+        int length = DAYS_IN_MONTH[month - 1];
+        if (month == 2 && dayOfMonthOf((day - dayOfMonth + 29) * DAY_MILLIS) == 29) {
+            length = 29;
+        }
+        return day - dayOfMonth + length + 1;
+    }
+
+    static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            q--;
+        }
+        return q;
+    }
+
+    static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA ScheduleEvaluator";
+
+    static final long MINUTE_MILLIS = 60 * 1000L;
+    static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    // bounds the searches for the next boundary, which take a few steps per day searched
+    private static final int MAX_SEARCH_STEPS = 4096;
+
+    private final int mActivationLimit;
+    private final TimeZone mTimeZone;
+
+    // sorted by start
+    private final long[] mStarts;
+    private final long[] mEnds;
+    private final long[] mMaxEnds;
+
+    // a mask per recurring range (in the ranges' original order), then the cron expression's
+    private final long[] mMinuteMasks;
+    private final int[] mHourMasks;
+    private final long[] mDayOfMonthMasks;
+    private final int[] mMonthMasks;
+    private final int[] mDayOfWeekMasks;
+    private final boolean[] mDayOr;
+}
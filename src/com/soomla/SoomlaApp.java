@@ -17,7 +17,10 @@
 package com.soomla;
 
 import android.app.Application;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Build;
 
 import com.soomla.events.AppToBackgroundEvent;
@@ -58,6 +61,7 @@ public class SoomlaApp extends Application{
         }
 
         ForegroundService = Foreground.init();
+        registerTimeZoneReceiver(context);
 
         defaultUEH = Thread.getDefaultUncaughtExceptionHandler();
         Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
@@ -88,6 +92,7 @@ public class SoomlaApp extends Application{
 	public static void setApplication(Application application) {
 		mAppInstance = application;
 		context = application.getApplicationContext();
+		registerTimeZoneReceiver(context);
 	}
 
     public static Context getAppContext() {
@@ -95,8 +100,28 @@ public class SoomlaApp extends Application{
     }
 
 
+    /**
+     * Lets the clocks know when the device's time zone changes,
+     * so recurring schedules follow it right away.
+     */
+    private static synchronized void registerTimeZoneReceiver(Context context) {
+        if (sTimeZoneReceiverRegistered || context == null) {
+            return;
+        }
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Clock.onDeviceTimeZoneChanged();
+            }
+        }, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+        sTimeZoneReceiverRegistered = true;
+    }
+
+
     /** Private Members */
 
+    private static boolean sTimeZoneReceiverRegistered;
+
     private static Context context;
 
 
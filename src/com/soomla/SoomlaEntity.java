@@ -25,6 +25,7 @@ import org.json.JSONObject;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -46,7 +47,7 @@ public abstract class SoomlaEntity<T> {
     public SoomlaEntity(String mName, String mDescription, String mID) {
         this.mName = mName;
         this.mDescription = mDescription;
-        this.mID = mID.trim();
+        this.mID = EntityRegistry.internId(mID.trim());
     }
 
     /**
@@ -59,7 +60,19 @@ public abstract class SoomlaEntity<T> {
     public SoomlaEntity(JSONObject jsonObject) throws JSONException {
         mName = jsonObject.optString(JSONConsts.SOOM_ENTITY_NAME);
         mDescription = jsonObject.optString(JSONConsts.SOOM_ENTITY_DESCRIPTION);
-        mID = jsonObject.getString(JSONConsts.SOOM_ENTITY_ID);
+        mID = EntityRegistry.internId(jsonObject.getString(JSONConsts.SOOM_ENTITY_ID));
+    }
+
+    /**
+     * Copy constructor, see <code>copy</code>.
+     *
+     * @param source the entity to copy
+     * @param newId the ID of the copy
+     */
+    protected SoomlaEntity(SoomlaEntity<T> source, String newId) {
+        this.mName = source.mName;
+        this.mDescription = source.mDescription;
+        this.mID = EntityRegistry.internId(newId);
     }
 
     /**
@@ -86,9 +99,65 @@ public abstract class SoomlaEntity<T> {
         return jsonObject;
     }
 
+    /**
+     * Converts the current <code>SoomlaEntity</code> to a JSON string.
+     * The string is kept until the entity changes, so serializing an
+     * unchanged entity again doesn't rebuild it.
+     *
+     * @return A JSON representation of the current <code>SoomlaEntity</code>,
+     * or <code>null</code> if it can't be created
+     */
+    public synchronized String toJSONString() {
+        if (mJSONString != null && mJSONStringVersion == mJSONVersion.get() && isJSONStringCurrent()) {
+            return mJSONString;
+        }
+
+        // a change made while building bumps the version, so the string isn't kept past it
+        int version = mJSONVersion.get();
+        String json = buildJSONString();
+        mJSONString = json;
+        mJSONStringVersion = version;
+        return json;
+    }
+
+    /**
+     * Builds the JSON string returned by <code>toJSONString</code>.
+     *
+     * @return A JSON representation of the current <code>SoomlaEntity</code>,
+     * or <code>null</code> if it can't be created
+     */
+    protected String buildJSONString() {
+        JSONObject jsonObject = toJSONObject();
+        return jsonObject != null ? jsonObject.toString() : null;
+    }
+
+    /**
+     * Checks if the kept JSON string still represents this entity, for changes
+     * that <code>invalidateJSONString</code> isn't called on (e.g. a list changed
+     * by its holder).  It's called on every <code>toJSONString</code>, so it
+     * must be cheap, and must not go through other entities.
+     *
+     * @return <code>true</code> if the kept JSON string can be returned
+     */
+    protected boolean isJSONStringCurrent() {
+        return true;
+    }
+
+    /**
+     * Marks the kept JSON string as outdated.  The setters of the fields serialized
+     * by this class call it.  Subclasses must call it whenever they assign
+     * <code>mName</code>, <code>mDescription</code> or <code>mID</code> directly,
+     * or change anything else that <code>toJSONObject</code> serializes; until then,
+     * <code>toJSONString</code> keeps returning the old JSON.
+     */
+    protected void invalidateJSONString() {
+        mJSONVersion.incrementAndGet();
+    }
+
     /**
      * Checks if the given object is equal to this object, by comparing the given object's
-     * id with this <code>SoomlaEntity</code>'s ID
+     * id with this <code>SoomlaEntity</code>'s ID.  IDs are interned, so this is usually
+     * an identity check.
      *
      * @param o the object to compare
      * @return true if the objects are equal, otherwise false
@@ -100,7 +169,7 @@ public abstract class SoomlaEntity<T> {
 
         SoomlaEntity that = (SoomlaEntity) o;
 
-        return mID.equals(that.mID);
+        return mID == that.mID || mID.equals(that.mID);
     }
 
     /**
@@ -111,7 +180,20 @@ public abstract class SoomlaEntity<T> {
         return mID != null ? mID.hashCode() : 0;
     }
 
+    /**
+     * Creates a copy of this entity with a different ID.
+     * Uses <code>copy</code> when the entity's class supports it, otherwise
+     * goes through the entity's JSON representation.
+     *
+     * @param newId the ID of the copy
+     * @return the copy, or <code>null</code> if it couldn't be created
+     */
     public T clone(String newId) {
+        T copy = copy(newId);
+        if (copy != null) {
+            return copy;
+        }
+
         JSONObject obj = this.toJSONObject();
         try {
             obj.put(JSONConsts.SOOM_ENTITY_ID, newId);
@@ -133,16 +215,38 @@ public abstract class SoomlaEntity<T> {
         return null;
     }
 
+    /**
+     * Copies this entity directly, without serializing it.
+     * Classes supporting it should check that they are the exact class of
+     * this entity, so subclasses that don't support it are cloned through JSON.
+     *
+     * @param newId the ID of the copy
+     * @return the copy, or <code>null</code> to clone through JSON
+     */
+    protected T copy(String newId) {
+        return null;
+    }
+
     /** Setters and Getters **/
 
     public String getName() {
         return mName;
     }
 
+    protected void setName(String name) {
+        mName = name;
+        invalidateJSONString();
+    }
+
     public String getDescription() {
         return mDescription;
     }
 
+    protected void setDescription(String description) {
+        mDescription = description;
+        invalidateJSONString();
+    }
+
     public String getID() {
         return mID;
     }
@@ -151,7 +255,13 @@ public abstract class SoomlaEntity<T> {
 
     private static final String TAG = "SOOMLA SoomlaEntity"; //used for Log messages
 
+    // Subclasses that change these fields directly, instead of through the
+    // setters, must call invalidateJSONString() afterwards.
     protected String mName;
     protected String mDescription;
     protected String mID;
+
+    private final AtomicInteger mJSONVersion = new AtomicInteger();
+    private String mJSONString;
+    private int mJSONStringVersion;
 }
@@ -34,14 +34,18 @@ public class JSONConsts {
 
     public static final String SOOM_REWARDS             = "rewards";
     public static final String SOOM_REWARD_ICONURL      = "iconUrl";
+    public static final String SOOM_REWARD_WEIGHT       = "weight";
 
 
     /** Schedule **/
     public static final String SOOM_SCHE_REC            = "schedRecurrence";
+    public static final String SOOM_SCHE_CRON           = "schedCron";
     public static final String SOOM_SCHE_RANGES         = "schedTimeRanges";
     public static final String SOOM_SCHE_RANGE_START    = "schedTimeRangeStart";
     public static final String SOOM_SCHE_RANGE_END      = "schedTimeRangeEnd";
     public static final String SOOM_SCHE_APPROVALS      = "schedApprovals";
+    public static final String SOOM_SCHE_WINDOW_LIMIT   = "schedWindowApprovals";
+    public static final String SOOM_SCHE_WINDOW_MILLIS  = "schedWindowMillis";
 
 }
 
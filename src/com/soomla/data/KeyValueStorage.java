@@ -150,6 +150,22 @@ public class KeyValueStorage {
         getDefaultStorage().purgeStorage();
     }
 
+    /**
+     * Sets a value without dropping <code>RewardStorage</code>'s cached state,
+     * for <code>RewardStorage</code>'s own writes, which keep its cache coherent.
+     */
+    static void setRewardValue(String key, String val) {
+        getDefaultStorage().mKeeva.put(key, val);
+    }
+
+    /**
+     * Deletes a value without dropping <code>RewardStorage</code>'s cached state,
+     * see <code>setRewardValue</code>.
+     */
+    static void deleteRewardValue(String key) {
+        getDefaultStorage().mKeeva.remove(key);
+    }
+
     /**
      * Returns the default KeyValueStorage
      *
@@ -180,14 +196,23 @@ public class KeyValueStorage {
 
     public void purgeStorage() {
         mKeeva.purgeStorage();
+        if (isDefaultStorage()) {
+            RewardStorage.invalidateCache();
+        }
     }
 
     public void remove(String key) {
         mKeeva.remove(key);
+        if (isDefaultStorage()) {
+            RewardStorage.invalidateCache(key);
+        }
     }
 
     public void put(String key, String val) {
         mKeeva.put(key, val);
+        if (isDefaultStorage()) {
+            RewardStorage.invalidateCache(key);
+        }
     }
 
     public String get(String key) {
@@ -226,6 +251,14 @@ public class KeyValueStorage {
         mKeeva.putForNonEncryptedKey(key, val);
     }
 
+    private static synchronized boolean isDefaultStorage(KeyValueStorage storage) {
+        return storage == sSoomlaKeyValueStorage;
+    }
+
+    private boolean isDefaultStorage() {
+        return isDefaultStorage(this);
+    }
+
     /**
      * Private Members
      **/
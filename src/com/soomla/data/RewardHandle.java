@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.data;
+
+import android.text.TextUtils;
+
+import com.soomla.BusProvider;
+import com.soomla.Clock;
+import com.soomla.SoomlaUtils;
+import com.soomla.events.RewardGivenEvent;
+import com.soomla.events.RewardTakenEvent;
+import com.soomla.util.Base64;
+import com.soomla.util.Base64DecoderException;
+
+/**
+ * A reusable handle to the persisted state of a single reward.
+ * The handle holds the reward's storage keys and a cached snapshot
+ * of its state, so repeated queries don't go to storage.
+ *
+ * There is only one handle per reward ID (get it with
+ * <code>RewardStorage.handle</code>), and all of <code>RewardStorage</code>'s
+ * methods go through it, which keeps the cached snapshot coherent.
+ * Writes go straight through to storage.
+ */
+public class RewardHandle {
+
+    RewardHandle(String rewardId) {
+        mRewardId = rewardId;
+
+        String prefix = RewardStorage.DB_KEY_REWARDS + rewardId + ".";
+        mKeyTimesGiven = prefix + "timesGiven";
+        mKeyLastGiven = prefix + "lastGiven";
+        mKeyIdxSeqGiven = prefix + "seq.idx";
+        mKeyHistory = prefix + "history";
+    }
+
+    /**
+     * Checks whether the given storage key holds part of this reward's state.
+     */
+    boolean ownsKey(String key) {
+        return key.equals(mKeyTimesGiven) || key.equals(mKeyLastGiven)
+                || key.equals(mKeyIdxSeqGiven) || key.equals(mKeyHistory);
+    }
+
+    /**
+     * Sets the reward status of this reward and notifies about it
+     *
+     * @param give <code>true</code> to give the reward, <code>false</code> to take it
+     */
+    public void setRewardStatus(boolean give) {
+        setRewardStatus(give, true);
+    }
+
+    public void setRewardStatus(boolean give, boolean notify) {
+        synchronized (this) {
+            writeTimesGiven(getTimesGiven() + (give ? 1 : -1));
+
+            RewardHistory history = loadHistory();
+            if (give) {
+                long now = Clock.getDefault().currentTimeMillis();
+                setLastGivenTimeMillis(now);
+                history.add(now);
+                saveHistory();
+            } else if (history.removeLatest()) {
+                saveHistory();
+            }
+        }
+        RewardStorage.notifyStateChanged(mRewardId);
+
+        if (notify) {
+            if (give) {
+                BusProvider.getInstance().post(new RewardGivenEvent(mRewardId));
+            } else {
+                BusProvider.getInstance().post(new RewardTakenEvent(mRewardId));
+            }
+        }
+    }
+
+    /**
+     * Checks whether this reward was given.
+     *
+     * @return <code>true</code> if the reward was already given,
+     * <code>false</code> otherwise
+     */
+    public boolean isRewardGiven() {
+        return getTimesGiven() > 0;
+    }
+
+    public synchronized int getTimesGiven() {
+        if (mTimesGiven == NOT_LOADED) {
+            String val = KeyValueStorage.getValue(mKeyTimesGiven);
+            mTimesGiven = TextUtils.isEmpty(val) ? 0 : Integer.parseInt(val);
+        }
+        return mTimesGiven;
+    }
+
+    /**
+     * Resets the number of times this reward was given.  The history keeps
+     * only the latest <code>timesGiven</code> entries, so limits per window
+     * don't count gives the reset state doesn't have.
+     *
+     * @param timesGiven the number of times the reward was given
+     */
+    public void resetTimesGiven(int timesGiven) {
+        synchronized (this) {
+            writeTimesGiven(timesGiven);
+            if (loadHistory().retainLatest(timesGiven)) {
+                saveHistory();
+            }
+        }
+        RewardStorage.notifyStateChanged(mRewardId);
+    }
+
+    public synchronized long getLastGivenTimeMillis() {
+        if (!mLastGivenLoaded) {
+            String val = KeyValueStorage.getValue(mKeyLastGiven);
+            mLastGiven = TextUtils.isEmpty(val) ? 0 : Long.parseLong(val);
+            mLastGivenLoaded = true;
+        }
+        return mLastGiven;
+    }
+
+    public synchronized void setLastGivenTimeMillis(long lastGiven) {
+        register();
+        KeyValueStorage.setRewardValue(mKeyLastGiven, String.valueOf(lastGiven));
+        mLastGiven = lastGiven;
+        mLastGivenLoaded = true;
+    }
+
+    /**
+     * Retrieves the index of the last reward given in a sequence of rewards.
+     *
+     * @return the index of the reward in the sequence
+     */
+    public synchronized int getLastSeqIdxGiven() {
+        if (mLastSeqIdx == NOT_LOADED) {
+            String val = KeyValueStorage.getValue(mKeyIdxSeqGiven);
+            mLastSeqIdx = val == null ? -1 : Integer.parseInt(val);
+        }
+        return mLastSeqIdx;
+    }
+
+    /**
+     * Sets the index of the last reward given in a sequence of rewards.
+     *
+     * @param idx the index to set
+     */
+    public synchronized void setLastSeqIdxGiven(int idx) {
+        if (idx == mLastSeqIdx) {
+            return;
+        }
+        register();
+        KeyValueStorage.setRewardValue(mKeyIdxSeqGiven, String.valueOf(idx));
+        mLastSeqIdx = idx;
+    }
+
+    /**
+     * Moves the index of the last reward given in a sequence of rewards
+     * by the given number of steps, within the given bounds.
+     * The index is persisted once, whatever the number of steps.
+     *
+     * @param steps the number of steps to move, negative to move back
+     * @param min the lowest index allowed
+     * @param max the highest index allowed
+     * @return the number of steps actually moved
+     */
+    public synchronized int moveLastSeqIdxGiven(int steps, int min, int max) {
+        int idx = getLastSeqIdxGiven();
+        long target = (long) idx + steps;
+        int moved;
+        if (steps > 0) {
+            moved = idx >= max ? 0 : (int) (Math.min(target, max) - idx);
+        } else {
+            moved = idx <= min ? 0 : (int) (Math.max(target, min) - idx);
+        }
+        if (moved != 0) {
+            setLastSeqIdxGiven(idx + moved);
+        }
+        return moved;
+    }
+
+    /**
+     * Retrieves a copy of the history of times this reward was given.
+     *
+     * @return the reward's history, empty if it was never given
+     */
+    public synchronized RewardHistory getGivenHistory() {
+        return RewardHistory.fromBytes(loadHistory().toBytes());
+    }
+
+    /**
+     * Replaces the history of times this reward was given.
+     *
+     * @param history the new history
+     */
+    public void resetGivenHistory(RewardHistory history) {
+        synchronized (this) {
+            mHistory = history.withCapacity(Math.max(history.capacity(), loadHistory().capacity()));
+            saveHistory();
+        }
+        RewardStorage.notifyStateChanged(mRewardId);
+    }
+
+    public synchronized int getTimesGivenInWindow(long nowMillis, long windowMillis) {
+        return loadHistory().countInWindow(nowMillis, windowMillis);
+    }
+
+    public synchronized int getTimesGivenSince(long sinceMillis) {
+        return loadHistory().countSince(sinceMillis);
+    }
+
+    /**
+     * Finds when this reward can be given again under a limit of times per rolling window.
+     *
+     * @param nowMillis the current time
+     * @param windowMillis the length of the window
+     * @param limit the maximum number of times given in a window
+     * @return <code>nowMillis</code> if there's room in the window now,
+     * otherwise the time a slot frees up
+     */
+    public synchronized long getNextWindowSlotTime(long nowMillis, long windowMillis, int limit) {
+        ensureHistoryCapacity(limit);
+        return mHistory.nextFreeSlot(nowMillis, windowMillis, limit);
+    }
+
+    /**
+     * Makes sure the history keeps at least the given number of entries,
+     * so limits of up to that many times per window are counted exactly.
+     *
+     * @param capacity the minimal capacity
+     */
+    public synchronized void ensureHistoryCapacity(int capacity) {
+        RewardHistory history = loadHistory();
+        if (history.capacity() < capacity) {
+            mHistory = history.withCapacity(capacity);
+        }
+    }
+
+    /**
+     * Deletes all of this reward's state from storage.
+     */
+    public void delete() {
+        synchronized (this) {
+            KeyValueStorage.deleteRewardValue(mKeyTimesGiven);
+            KeyValueStorage.deleteRewardValue(mKeyLastGiven);
+            KeyValueStorage.deleteRewardValue(mKeyIdxSeqGiven);
+            KeyValueStorage.deleteRewardValue(mKeyHistory);
+            invalidate();
+        }
+        RewardStorage.notifyStateChanged(mRewardId);
+    }
+
+    /**
+     * Drops the cached snapshot so the next query reads from storage.
+     */
+    public synchronized void invalidate() {
+        // the IDs registry may have been dropped too, e.g. by a purge
+        mRegistered = false;
+        mTimesGiven = NOT_LOADED;
+        mLastSeqIdx = NOT_LOADED;
+        mLastGivenLoaded = false;
+        mHistory = null;
+    }
+
+    /** Setters and Getters **/
+
+    public String getRewardId() {
+        return mRewardId;
+    }
+
+    private RewardHistory loadHistory() {
+        if (mHistory != null) {
+            return mHistory;
+        }
+
+        String val = KeyValueStorage.getValue(mKeyHistory);
+        if (!TextUtils.isEmpty(val)) {
+            try {
+                mHistory = RewardHistory.fromBytes(Base64.decode(val));
+            } catch (Base64DecoderException e) {
+                SoomlaUtils.LogError(TAG, "Unable to decode history of reward " + mRewardId + ". error: " + e.getLocalizedMessage());
+            }
+            if (mHistory == null) {
+                SoomlaUtils.LogWarning(TAG, "Malformed history for reward " + mRewardId + ", starting a new one");
+            }
+        }
+        if (mHistory == null) {
+            mHistory = new RewardHistory(RewardHistory.DEFAULT_CAPACITY);
+        }
+        return mHistory;
+    }
+
+    private void writeTimesGiven(int timesGiven) {
+        register();
+        KeyValueStorage.setRewardValue(mKeyTimesGiven, String.valueOf(timesGiven));
+        mTimesGiven = timesGiven;
+    }
+
+    private void saveHistory() {
+        register();
+        KeyValueStorage.setRewardValue(mKeyHistory, Base64.encode(mHistory.toBytes()));
+    }
+
+    private void register() {
+        if (!mRegistered) {
+            RewardStorage.registerRewardId(mRewardId);
+            mRegistered = true;
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA RewardHandle";
+
+    private static final int NOT_LOADED = Integer.MIN_VALUE;
+
+    private final String mRewardId;
+    private final String mKeyTimesGiven;
+    private final String mKeyLastGiven;
+    private final String mKeyIdxSeqGiven;
+    private final String mKeyHistory;
+
+    private boolean mRegistered = false;
+    private int mTimesGiven = NOT_LOADED;
+    private int mLastSeqIdx = NOT_LOADED;
+    private boolean mLastGivenLoaded = false;
+    private long mLastGiven;
+    private RewardHistory mHistory;
+}
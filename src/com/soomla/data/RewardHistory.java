@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-capacity ring of the times (in millis) a reward was given.
+ * Once the ring is full, every new entry overwrites the oldest one.
+ *
+ * Entries are kept in chronological order, so rolling-window queries
+ * are answered with a binary search over the ring.
+ * Note that a window query can never return more than the ring's capacity.
+ *
+ * This class is used by <code>RewardStorage</code> which persists it as a
+ * packed binary value.
+ */
+public class RewardHistory {
+
+    public static final int DEFAULT_CAPACITY = 32;
+
+    /**
+     * Constructor
+     *
+     * @param capacity the maximum number of timestamps kept in the ring
+     */
+    public RewardHistory(int capacity) {
+        if (capacity < 1) {
+            capacity = 1;
+        }
+        mTimes = new long[capacity];
+        mStart = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Generates an instance of <code>RewardHistory</code> from its packed form.
+     *
+     * @param packed the bytes created by <code>toBytes</code>
+     * @return the unpacked history, or <code>null</code> if the bytes are malformed
+     */
+    public static RewardHistory fromBytes(byte[] packed) {
+        if (packed == null || packed.length < HEADER_SIZE) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(packed);
+        if (buffer.get() != FORMAT_VERSION) {
+            return null;
+        }
+        int capacity = buffer.getInt();
+        int size = buffer.getInt();
+        if (capacity < 1 || size < 0 || size > capacity || buffer.remaining() < size * 8) {
+            return null;
+        }
+
+        RewardHistory history = new RewardHistory(capacity);
+        for (int i = 0; i < size; i++) {
+            history.mTimes[i] = buffer.getLong();
+        }
+        history.mSize = size;
+        return history;
+    }
+
+    /**
+     * Packs this history into a compact binary form: a version byte, the capacity,
+     * the number of entries and then the entries themselves, oldest first.
+     *
+     * @return the packed bytes
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mSize * 8);
+        buffer.put(FORMAT_VERSION);
+        buffer.putInt(mTimes.length);
+        buffer.putInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            buffer.putLong(get(i));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Appends a timestamp to the ring, overwriting the oldest one if the ring is full.
+     * A timestamp older than the latest entry (a clock going backwards) is recorded
+     * as the latest entry, to keep the ring sorted.
+     *
+     * @param timeMillis the time the reward was given
+     */
+    public void add(long timeMillis) {
+        if (mSize > 0 && timeMillis < getLatest()) {
+            timeMillis = getLatest();
+        }
+
+        if (mSize < mTimes.length) {
+            mTimes[(mStart + mSize) % mTimes.length] = timeMillis;
+            mSize++;
+        } else {
+            mTimes[mStart] = timeMillis;
+            mStart = (mStart + 1) % mTimes.length;
+        }
+    }
+
+    /**
+     * Removes the latest timestamp from the ring (used when a reward is taken).
+     *
+     * @return <code>true</code> if an entry was removed, <code>false</code> if the ring was empty
+     */
+    public boolean removeLatest() {
+        if (mSize == 0) {
+            return false;
+        }
+        mSize--;
+        return true;
+    }
+
+    /**
+     * Removes all but the latest entries.
+     *
+     * @param count the number of latest entries to keep
+     * @return <code>true</code> if entries were removed
+     */
+    public boolean retainLatest(int count) {
+        count = Math.max(0, count);
+        if (count >= mSize) {
+            return false;
+        }
+        mStart = (mStart + mSize - count) % mTimes.length;
+        mSize = count;
+        return true;
+    }
+
+    /**
+     * Counts the entries at or after the given time.
+     *
+     * @param sinceMillis the (inclusive) beginning of the range
+     * @return the number of entries in the range
+     */
+    public int countSince(long sinceMillis) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (get(mid) < sinceMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return mSize - low;
+    }
+
+    /**
+     * Counts the entries in the rolling window that ends at the given time.
+     *
+     * @param nowMillis the end of the window
+     * @param windowMillis the length of the window
+     * @return the number of entries in (<code>nowMillis - windowMillis</code>, <code>nowMillis</code>]
+     */
+    public int countInWindow(long nowMillis, long windowMillis) {
+        return countSince(nowMillis - windowMillis + 1) - countSince(nowMillis + 1);
+    }
+
+    /**
+     * Finds when the rolling window that ends at the given time will have room
+     * for another entry, given a limit of entries per window.
+     * NOTE: the answer is exact only if the limit is not above the capacity.
+     *
+     * @param nowMillis the end of the window
+     * @param windowMillis the length of the window
+     * @param limit the maximum number of entries in a window
+     * @return <code>nowMillis</code> if the window has room now, otherwise the
+     * time the <code>limit</code>-th latest entry leaves the window
+     */
+    public long nextFreeSlot(long nowMillis, long windowMillis, int limit) {
+        if (limit < 1 || countInWindow(nowMillis, windowMillis) < limit) {
+            return nowMillis;
+        }
+        // the window holds at least limit entries up to now
+        int upToNow = mSize - countSince(nowMillis + 1);
+        return get(upToNow - limit) + windowMillis;
+    }
+
+    /**
+     * Copies this history into a ring with a different capacity,
+     * keeping the latest entries if it's smaller.
+     *
+     * @param capacity the capacity of the copy
+     * @return the copy
+     */
+    public RewardHistory withCapacity(int capacity) {
+        RewardHistory copy = new RewardHistory(capacity);
+        for (int i = Math.max(0, mSize - copy.capacity()); i < mSize; i++) {
+            copy.add(get(i));
+        }
+        return copy;
+    }
+
+    /**
+     * Retrieves an entry by its chronological position.
+     *
+     * @param i the position, 0 being the oldest entry
+     * @return the timestamp in the given position
+     */
+    public long get(int i) {
+        if (i < 0 || i >= mSize) {
+            throw new IndexOutOfBoundsException("index: " + i + ", size: " + mSize);
+        }
+        return mTimes[(mStart + i) % mTimes.length];
+    }
+
+    /** Setters and Getters **/
+
+    public long getLatest() {
+        return mSize == 0 ? 0 : get(mSize - 1);
+    }
+
+    public long getOldest() {
+        return mSize == 0 ? 0 : get(0);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mTimes.length;
+    }
+
+
+    /** Private Members **/
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 1 + 4 + 4;
+
+    private final long[] mTimes;
+    private int mStart;
+    private int mSize;
+}
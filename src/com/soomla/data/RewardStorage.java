@@ -16,21 +16,25 @@
 
 package com.soomla.data;
 
-import android.text.TextUtils;
-
-import com.soomla.BusProvider;
+import com.soomla.Clock;
 import com.soomla.SoomlaConfig;
 import com.soomla.SoomlaUtils;
-import com.soomla.events.RewardGivenEvent;
-import com.soomla.events.RewardTakenEvent;
+import com.soomla.util.Base64;
+import com.soomla.util.Base64DecoderException;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A utility class for persisting and querying the state of rewards.
@@ -44,22 +48,101 @@ public class RewardStorage {
 
     private static final String TAG = "SOOMLA RewardStorage";
 
-    private static final String DB_KEY_REWARDS = SoomlaConfig.DB_KEY_PREFIX + "rewards.";
+    static final String DB_KEY_REWARDS = SoomlaConfig.DB_KEY_PREFIX + "rewards.";
+
+    private static final String DB_KEY_REWARD_IDS = SoomlaConfig.DB_KEY_PREFIX + "rewardIds";
 
-    private static String keyRewards(String rewardId, String postfix) {
-        return DB_KEY_REWARDS + rewardId + "." + postfix;
+    /**
+     * Retrieves the handle to the given reward's state.
+     * The handle is reusable, and holding it saves looking it up by ID on every call.
+     *
+     * @param rewardId the reward to get the handle for
+     * @return the reward's handle
+     */
+    public static RewardHandle handle(String rewardId) {
+        synchronized (sHandles) {
+            RewardHandle handle = sHandles.get(rewardId);
+            if (handle == null) {
+                handle = new RewardHandle(rewardId);
+                sHandles.put(rewardId, handle);
+            }
+            return handle;
+        }
     }
 
-    private static String keyRewardTimesGiven(String rewardId) {
-        return keyRewards(rewardId, "timesGiven");
+    /**
+     * Drops all cached reward state, so it's read again from storage.
+     * Called when the default <code>KeyValueStorage</code> is purged; call it
+     * after changing the storage behind <code>KeyValueStorage</code>'s back.
+     */
+    public static void invalidateCache() {
+        List<RewardHandle> handles;
+        synchronized (sHandles) {
+            handles = new ArrayList<RewardHandle>(sHandles.values());
+        }
+        for (RewardHandle handle : handles) {
+            handle.invalidate();
+        }
+        synchronized (RewardStorage.class) {
+            sRewardIds = null;
+        }
     }
 
-    private static String keyRewardLastGiven(String rewardId) {
-        return keyRewards(rewardId, "lastGiven");
+    /**
+     * Drops the cached reward state stored under the given key,
+     * called when the key is written directly through <code>KeyValueStorage</code>.
+     *
+     * @param key the key that was written
+     */
+    static void invalidateCache(String key) {
+        if (key.equals(DB_KEY_REWARD_IDS)) {
+            invalidateCache();
+            return;
+        }
+        if (!key.startsWith(DB_KEY_REWARDS)) {
+            return;
+        }
+
+        List<RewardHandle> handles = new ArrayList<RewardHandle>();
+        synchronized (sHandles) {
+            for (RewardHandle handle : sHandles.values()) {
+                if (handle.ownsKey(key)) {
+                    handles.add(handle);
+                }
+            }
+        }
+        for (RewardHandle handle : handles) {
+            handle.invalidate();
+        }
     }
 
-    private static String keyRewardIdxSeqGiven(String rewardId) {
-        return keyRewards(rewardId, "seq.idx");
+
+    /**
+     * Listener for changes in the persisted state of rewards
+     */
+    public interface StateListener {
+
+        /**
+         * Called after the state of the given reward changed (given, taken, reset or deleted).
+         * Called on the thread that made the change.
+         *
+         * @param rewardId the reward whose state changed
+         */
+        void onRewardStateChanged(String rewardId);
+    }
+
+    public static void addStateListener(StateListener listener) {
+        sStateListeners.addIfAbsent(listener);
+    }
+
+    public static void removeStateListener(StateListener listener) {
+        sStateListeners.remove(listener);
+    }
+
+    static void notifyStateChanged(String rewardId) {
+        for (StateListener listener : sStateListeners) {
+            listener.onRewardStateChanged(rewardId);
+        }
     }
 
 
@@ -76,7 +159,7 @@ public class RewardStorage {
     }
 
     public static void setRewardStatus(String rewardId, boolean give, boolean notify) {
-        setTimesGiven(rewardId, give, notify);
+        handle(rewardId).setRewardStatus(give, notify);
     }
 
     /**
@@ -87,7 +170,7 @@ public class RewardStorage {
      * <code>false</code> otherwise
      */
     public static boolean isRewardGiven(String rewardId) {
-        return getTimesGiven(rewardId) > 0;
+        return handle(rewardId).isRewardGiven();
     }
 
 
@@ -100,14 +183,7 @@ public class RewardStorage {
      * @return the index of the reward in the sequence
      */
     public static int getLastSeqIdxGiven(String rewardId) {
-        String key = keyRewardIdxSeqGiven(rewardId);
-
-        String val = KeyValueStorage.getValue(key);
-
-        if (val == null) {
-            return -1;
-        }
-        return Integer.parseInt(val);
+        return handle(rewardId).getLastSeqIdxGiven();
     }
 
     /**
@@ -117,18 +193,11 @@ public class RewardStorage {
      * @param idx the index to set
      */
     public static void setLastSeqIdxGiven(String rewardId, int idx) {
-        String key = keyRewardIdxSeqGiven(rewardId);
-
-        KeyValueStorage.setValue(key, String.valueOf(idx));
+        handle(rewardId).setLastSeqIdxGiven(idx);
     }
 
     public static int getTimesGiven(String rewardId) {
-        String key = keyRewardTimesGiven(rewardId);
-        String val = KeyValueStorage.getValue(key);
-        if (TextUtils.isEmpty(val)) {
-            return 0;
-        }
-        return Integer.parseInt(val);
+        return handle(rewardId).getTimesGiven();
     }
 
     public static Date getLastGivenTime(String rewardId) {
@@ -142,40 +211,54 @@ public class RewardStorage {
     }
 
     public static long getLastGivenTimeMillis(String rewardId) {
-        String key = keyRewardLastGiven(rewardId);
-        String val = KeyValueStorage.getValue(key);
-        if (TextUtils.isEmpty(val)) {
-            return 0;
-        }
-        return Long.parseLong(val);
-
+        return handle(rewardId).getLastGivenTimeMillis();
     }
 
     public static void setLastGivenTimeMillis(String rewardId, long lastGiven) {
-        String key = keyRewardLastGiven(rewardId);
-        KeyValueStorage.setValue(key, String.valueOf(lastGiven));
+        handle(rewardId).setLastGivenTimeMillis(lastGiven);
     }
 
-    private static void setTimesGiven(String rewardId, boolean up, boolean notify) {
-        int total = getTimesGiven(rewardId) + (up ? 1 : -1);
-        resetTimesGiven(rewardId, total);
+    /** History **/
 
-        if (up) {
-            setLastGivenTimeMillis(rewardId, new Date().getTime());
-        }
+    /**
+     * Retrieves the history of times the given reward was given.
+     * Taking a reward removes its latest entry from the history.
+     *
+     * @param rewardId the reward to check
+     * @return the reward's history, empty if it was never given
+     */
+    public static RewardHistory getGivenHistory(String rewardId) {
+        return handle(rewardId).getGivenHistory();
+    }
 
-        if (notify) {
-            if (up) {
-                BusProvider.getInstance().post(new RewardGivenEvent(rewardId));
-            } else {
-                BusProvider.getInstance().post(new RewardTakenEvent(rewardId));
-            }
-        }
+    /**
+     * Counts how many times the given reward was given in a rolling window
+     * ending now.  For example, for the last 24 hours use a window of
+     * <code>24 * 60 * 60 * 1000</code> millis.
+     * NOTE: the result is bounded by <code>RewardHistory.DEFAULT_CAPACITY</code>
+     *
+     * @param rewardId the reward to check
+     * @param windowMillis the length of the window
+     * @return the number of times the reward was given in the window
+     */
+    public static int getTimesGivenInWindow(String rewardId, long windowMillis) {
+        return handle(rewardId).getTimesGivenInWindow(Clock.getDefault().currentTimeMillis(), windowMillis);
+    }
+
+    /**
+     * Counts how many times the given reward was given since the given time.
+     * NOTE: the result is bounded by <code>RewardHistory.DEFAULT_CAPACITY</code>
+     *
+     * @param rewardId the reward to check
+     * @param sinceMillis the (inclusive) beginning of the range
+     * @return the number of times the reward was given since <code>sinceMillis</code>
+     */
+    public static int getTimesGivenSince(String rewardId, long sinceMillis) {
+        return handle(rewardId).getTimesGivenSince(sinceMillis);
     }
 
     public static void resetTimesGiven(String rewardId, int timesGiven) {
-        String key = keyRewardTimesGiven(rewardId);
-        KeyValueStorage.setValue(key, String.valueOf(timesGiven));
+        handle(rewardId).resetTimesGiven(timesGiven);
     }
 
     public static JSONObject getRewardsState() {
@@ -191,6 +274,11 @@ public class RewardStorage {
                 long lastGiven = RewardStorage.getLastGivenTimeMillis(rewardId);
                 rewardValuesJSON.put("lastGiven", lastGiven);
 
+                RewardHistory history = getGivenHistory(rewardId);
+                if (history.size() > 0) {
+                    rewardValuesJSON.put("history", Base64.encode(history.toBytes()));
+                }
+
                 //TODO: add LastSeqIdxGiven when sequence reward is fixed
 
                 rewardsStateJSON.put(rewardId, rewardValuesJSON);
@@ -226,6 +314,16 @@ public class RewardStorage {
                     setLastGivenTimeMillis(rewardId, lastGiven);
                 }
 
+                // without a history, resetTimesGiven trimmed it to the synced times given
+                if (itemValuesJSON.has("history")) {
+                    RewardHistory history = decodeHistory(itemValuesJSON.getString("history"));
+                    if (history != null) {
+                        handle(rewardId).resetGivenHistory(history);
+                    } else {
+                        SoomlaUtils.LogError(TAG, "Malformed history in state of reward " + rewardId + ", ignoring it");
+                    }
+                }
+
                 rewardIds.remove(rewardId);
             }
         }
@@ -238,15 +336,87 @@ public class RewardStorage {
         // were not in the sync state (so the state is inline with the provided
         // state)
         for (String rewardId : rewardIds) {
-            KeyValueStorage.deleteKeyValue(keyRewardTimesGiven(rewardId));
-            KeyValueStorage.deleteKeyValue(keyRewardLastGiven(rewardId));
-            KeyValueStorage.deleteKeyValue(keyRewardIdxSeqGiven(rewardId));
+            handle(rewardId).delete();
         }
+        unregisterRewardIds(rewardIds);
 
         return true;
     }
 
-    private static List<String> getRewardIds() {
+    private static RewardHistory decodeHistory(String encoded) {
+        try {
+            return RewardHistory.fromBytes(Base64.decode(encoded));
+        } catch (Base64DecoderException e) {
+            return null;
+        }
+    }
+
+    /** Reward IDs Registry **/
+
+    /**
+     * Retrieves the IDs of all rewards that have state in storage.
+     * The IDs are kept in a registry which is updated whenever a reward's
+     * state is first written, so no scan of the storage's keys is needed.
+     *
+     * @return a list of reward IDs
+     */
+    public static synchronized List<String> getRewardIds() {
+        return new ArrayList<String>(getRegisteredIds());
+    }
+
+    static synchronized void registerRewardId(String rewardId) {
+        if (getRegisteredIds().add(rewardId)) {
+            saveRegisteredIds();
+        }
+    }
+
+    private static synchronized void unregisterRewardIds(List<String> rewardIds) {
+        if (getRegisteredIds().removeAll(rewardIds)) {
+            saveRegisteredIds();
+        }
+    }
+
+    private static Set<String> getRegisteredIds() {
+        if (sRewardIds != null) {
+            return sRewardIds;
+        }
+
+        String val = KeyValueStorage.getValue(DB_KEY_REWARD_IDS);
+        if (val == null) {
+            // Storage from before the registry existed, build it once from the keys
+            sRewardIds = new LinkedHashSet<String>(scanRewardIds());
+            saveRegisteredIds();
+            return sRewardIds;
+        }
+
+        sRewardIds = new LinkedHashSet<String>();
+        try {
+            JSONArray idsArr = new JSONArray(val);
+            for (int i = 0; i < idsArr.length(); i++) {
+                sRewardIds.add(idsArr.getString(i));
+            }
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Unable to load reward IDs registry, rebuilding it. error: " + e.getLocalizedMessage());
+            sRewardIds.addAll(scanRewardIds());
+            saveRegisteredIds();
+        }
+        return sRewardIds;
+    }
+
+    private static void saveRegisteredIds() {
+        JSONArray idsArr = new JSONArray();
+        for (String rewardId : sRewardIds) {
+            idsArr.put(rewardId);
+        }
+        KeyValueStorage.setRewardValue(DB_KEY_REWARD_IDS, idsArr.toString());
+    }
+
+    /**
+     * Derives reward IDs from the storage's keys.
+     * NOTE: only used for migrating to the registry, reward IDs containing
+     * dots can't be derived correctly
+     */
+    private static List<String> scanRewardIds() {
         List<String> kvKeys = KeyValueStorage.getEncryptedKeys();
         List<String> rewardIds = new ArrayList<String>();
         if (kvKeys == null) {
@@ -268,4 +438,12 @@ public class RewardStorage {
 
         return rewardIds;
     }
+
+    /** Private Members **/
+
+    private static Set<String> sRewardIds;
+
+    private static final Map<String, RewardHandle> sHandles = new HashMap<String, RewardHandle>();
+
+    private static final CopyOnWriteArrayList<StateListener> sStateListeners = new CopyOnWriteArrayList<StateListener>();
 }
@@ -17,6 +17,7 @@
 package com.soomla.rewards;
 
 import com.soomla.SoomlaUtils;
+import com.soomla.util.JSONCreatable;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -28,6 +29,7 @@ import org.json.JSONObject;
  *
  * Created by refaelos on 13/05/14.
  */
+@JSONCreatable
 public class BadgeReward extends Reward {
 
     /**
@@ -68,6 +70,19 @@ public class BadgeReward extends Reward {
         }
     }
 
+    /**
+     * Copy constructor, see <code>SoomlaEntity.copy</code>.
+     */
+    protected BadgeReward(BadgeReward source, String newId) {
+        super(source, newId);
+        mIconUrl = source.mIconUrl;
+    }
+
+    @Override
+    protected Reward copy(String newId) {
+        return getClass() == BadgeReward.class ? new BadgeReward(this, newId) : null;
+    }
+
     /**
      * Converts the current <code>BadgeReward</code> to a JSONObject.
      *
@@ -106,6 +121,7 @@ public class BadgeReward extends Reward {
 
     public void setIconUrl(String iconUrl) {
         mIconUrl = iconUrl;
+        invalidateJSONString();
     }
 
 
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.rewards;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.data.JSONConsts;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The children of a reward, each created from its source (e.g. its JSON) when first accessed.
+ * Once all children are created, or the list is modified, the sources are released
+ * and the list holds the children like an <code>ArrayList</code>.
+ *
+ * Children that would fail to load are dropped when the list is built, as when
+ * loading all children up front, so the list's size and positions never change
+ * because a child is created.
+ *
+ * Children that weren't created yet are serialized from their source when it's JSON,
+ * so serializing their parent doesn't create them.
+ */
+abstract class LazyRewardList extends AbstractList<Reward> implements RandomAccess {
+
+    /**
+     * Constructor
+     *
+     * @param loaded the children already created, by position,
+     *               with <code>null</code> for the ones created when first accessed
+     */
+    LazyRewardList(Reward[] loaded) {
+        mLoaded = loaded;
+        for (Reward reward : loaded) {
+            if (reward != null) {
+                mLoadedCount++;
+            }
+        }
+    }
+
+    /**
+     * Creates a list of children from their JSON, as <code>Reward.fromJSONObject</code> on each.
+     * Built-in reward classes are checked now and created when first accessed.
+     * Other classes can't be checked without creating them, so they're created now.
+     *
+     * @param sources the JSON representations of the children
+     * @param kept receives the JSON representations of the children that were kept, in order
+     */
+    static LazyRewardList ofJSON(JSONObject[] sources, List<JSONObject> kept) {
+        final JSONObject[] lazySources = new JSONObject[sources.length];
+        Reward[] loaded = new Reward[sources.length];
+        int count = 0;
+        for (JSONObject json : sources) {
+            if (isBuiltIn(json)) {
+                if (!canCreateBuiltIn(json)) {
+                    continue;
+                }
+                lazySources[count] = json;
+            } else {
+                loaded[count] = Reward.fromJSONObject(json);
+                if (loaded[count] == null) {
+                    continue;
+                }
+            }
+            kept.add(json);
+            count++;
+        }
+
+        return new LazyRewardList(Arrays.copyOf(loaded, count)) {
+
+            @Override
+            protected Reward load(int index) {
+                try {
+                    return createBuiltIn(mSources[index]);
+                } catch (JSONException e) {
+                    SoomlaUtils.LogError(TAG, "fromJSONObject JSONException:" + e.getMessage());
+                    return null;
+                }
+            }
+
+            /**
+             * The source without the weight, which belongs to the parent.
+             */
+            @Override
+            protected String sourceJSONString(int index) {
+                if (mSourceStrings[index] == null) {
+                    JSONObject json = mSources[index];
+                    if (json.has(JSONConsts.SOOM_REWARD_WEIGHT)) {
+                        JSONObject copy = new JSONObject();
+                        try {
+                            Iterator keysIter = json.keys();
+                            while (keysIter.hasNext()) {
+                                String key = (String) keysIter.next();
+                                if (!key.equals(JSONConsts.SOOM_REWARD_WEIGHT)) {
+                                    copy.put(key, json.get(key));
+                                }
+                            }
+                        } catch (JSONException e) {
+                            SoomlaUtils.LogError(TAG, "An error occurred while generating JSON object.");
+                            return null;
+                        }
+                        json = copy;
+                    }
+                    mSourceStrings[index] = json.toString();
+                }
+                return mSourceStrings[index];
+            }
+
+            @Override
+            protected void releaseSources() {
+                mSources = null;
+                mSourceStrings = null;
+            }
+
+            private JSONObject[] mSources = lazySources;
+            private String[] mSourceStrings = new String[lazySources.length];
+        };
+    }
+
+    private static boolean isBuiltIn(JSONObject json) {
+        String className = json.optString(JSONConsts.SOOM_CLASSNAME, null);
+        return ("BadgeReward".equals(className) || "RandomReward".equals(className)
+                || "SequenceReward".equals(className)) && !Reward.hasCustomCreator(className);
+    }
+
+    /**
+     * Checks what the built-in reward constructors would fail on.
+     */
+    private static boolean canCreateBuiltIn(JSONObject json) {
+        if (json.isNull(JSONConsts.SOOM_ENTITY_ID)) {
+            SoomlaUtils.LogError(TAG, "fromJSONObject JSONException: reward is missing its "
+                    + JSONConsts.SOOM_ENTITY_ID);
+            return false;
+        }
+        JSONArray rewards = json.optJSONArray(JSONConsts.SOOM_REWARDS);
+        if (rewards != null && !json.optString(JSONConsts.SOOM_CLASSNAME).equals("BadgeReward")) {
+            for (int i = 0; i < rewards.length(); i++) {
+                if (rewards.optJSONObject(i) == null) {
+                    SoomlaUtils.LogError(TAG, "fromJSONObject JSONException: a reward in "
+                            + JSONConsts.SOOM_REWARDS + " of " + json.optString(JSONConsts.SOOM_ENTITY_ID)
+                            + " is not an object");
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Reward createBuiltIn(JSONObject json) throws JSONException {
+        String className = json.getString(JSONConsts.SOOM_CLASSNAME);
+        if (className.equals("BadgeReward")) {
+            return new BadgeReward(json);
+        } else if (className.equals("RandomReward")) {
+            return new RandomReward(json);
+        }
+        return new SequenceReward(json);
+    }
+
+    /**
+     * Creates the child at the given position.  The children given to the list
+     * are known to load, so this only fails on a bug.
+     *
+     * @param index the position of the child
+     * @return the child, or <code>null</code> if it couldn't be created
+     */
+    protected abstract Reward load(int index);
+
+    /**
+     * Releases the sources of the children, called once they are all created.
+     */
+    protected abstract void releaseSources();
+
+    /**
+     * Retrieves the JSON string of a child that wasn't created yet, from its source.
+     *
+     * @param index the position of the child
+     * @return the child's JSON string, or <code>null</code> if its source isn't JSON
+     */
+    protected String sourceJSONString(int index) {
+        return null;
+    }
+
+    /**
+     * Registers the children in the <code>EntityRegistry</code>:
+     * the ones already created now, the others as they are created.
+     */
+    synchronized void registerOnLoad() {
+        mRegisterOnLoad = true;
+        List<Reward> rewards = mRewards != null ? mRewards : Arrays.asList(mLoaded);
+        for (Reward reward : rewards) {
+            if (reward != null) {
+                Reward.registerTree(reward);
+            }
+        }
+    }
+
+    /**
+     * Stops registering the children as they are created, for a list whose parent
+     * is no longer registered.
+     *
+     * @return the children created so far
+     */
+    synchronized List<Reward> unregisterOnLoad() {
+        mRegisterOnLoad = false;
+        return getCreated();
+    }
+
+    /**
+     * @return the children created so far, without creating the others
+     */
+    synchronized List<Reward> getCreated() {
+        if (mRewards != null) {
+            return new ArrayList<Reward>(mRewards);
+        }
+        List<Reward> created = new ArrayList<Reward>(mLoadedCount);
+        for (Reward reward : mLoaded) {
+            if (reward != null) {
+                created.add(reward);
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Retrieves the JSON strings of the children, as <code>Reward.toJSONStrings</code>.
+     * Children that weren't created yet are serialized from their source when possible,
+     * without being created.  The parent's JSON string is then marked as outdated
+     * when any of them is created, so it's rebuilt from the created child.
+     *
+     * @param parent the reward made of the children
+     * @return the children's JSON strings
+     */
+    String[] toJSONStrings(Reward parent) {
+        Reward[] rewards;
+        String[] jsonStrings;
+        synchronized (this) {
+            if (mRewards != null) {
+                rewards = mRewards.toArray(new Reward[mRewards.size()]);
+                jsonStrings = new String[rewards.length];
+            } else {
+                rewards = mLoaded.clone();
+                jsonStrings = new String[rewards.length];
+                for (int i = 0; i < rewards.length; i++) {
+                    if (rewards[i] == null) {
+                        // all sources are released once the last child is created below
+                        jsonStrings[i] = mRewards == null ? sourceJSONString(i) : null;
+                        if (jsonStrings[i] == null) {
+                            rewards[i] = get(i);
+                        }
+                    }
+                }
+                if (mRewards == null) {
+                    mJSONParent = parent;
+                }
+            }
+        }
+
+        // the created children are serialized without holding the lock
+        for (int i = 0; i < rewards.length; i++) {
+            if (rewards[i] != null) {
+                jsonStrings[i] = Reward.toJSONString(parent, rewards[i]);
+            }
+        }
+        return jsonStrings;
+    }
+
+    @Override
+    public synchronized Reward get(int index) {
+        if (mRewards != null) {
+            return mRewards.get(index);
+        }
+        if (index < 0 || index >= mLoaded.length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mLoaded.length);
+        }
+
+        Reward reward = mLoaded[index];
+        if (reward == null) {
+            reward = create(index);
+            if (++mLoadedCount == mLoaded.length) {
+                materialize();
+            }
+        }
+        return reward;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mRewards != null ? mRewards.size() : mLoaded.length;
+    }
+
+    @Override
+    public synchronized Reward set(int index, Reward reward) {
+        materialize();
+        return mRewards.set(index, reward);
+    }
+
+    @Override
+    public synchronized void add(int index, Reward reward) {
+        materialize();
+        mRewards.add(index, reward);
+        modCount++;
+    }
+
+    @Override
+    public synchronized Reward remove(int index) {
+        materialize();
+        modCount++;
+        return mRewards.remove(index);
+    }
+
+    private Reward create(int index) {
+        Reward reward = load(index);
+        if (reward == null) {
+            throw new IllegalStateException("Unable to create the reward at " + index + " of a checked list");
+        }
+        mLoaded[index] = reward;
+        if (mRegisterOnLoad) {
+            Reward.registerTree(reward);
+        }
+        if (mJSONParent != null) {
+            // its JSON string was built from the child's source
+            mJSONParent.invalidateJSONString();
+        }
+        return reward;
+    }
+
+    /**
+     * Creates all remaining children and releases their sources.
+     */
+    private void materialize() {
+        if (mRewards != null) {
+            return;
+        }
+
+        for (int i = 0; i < mLoaded.length; i++) {
+            if (mLoaded[i] == null) {
+                create(i);
+            }
+        }
+        mRewards = new ArrayList<Reward>(Arrays.asList(mLoaded));
+        mLoaded = null;
+        releaseSources();
+        mJSONParent = null;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA LazyRewardList";
+
+    private Reward[] mLoaded;
+    private int mLoadedCount;
+    private Reward mJSONParent;
+    private List<Reward> mRewards;
+    private boolean mRegisterOnLoad;
+}
@@ -16,15 +16,27 @@
 
 package com.soomla.rewards;
 
+import com.soomla.Schedule;
 import com.soomla.SoomlaUtils;
+import com.soomla.data.JSONConsts;
+import com.soomla.data.RewardStorage;
+import com.soomla.util.AliasTable;
+import com.soomla.util.JSONCreatable;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 /**
  * A specific type of <code>Reward</code> that holds of list of other
@@ -33,6 +45,8 @@ import java.util.Random;
  * Currently, the pool of rewards stays constant, so each reward is available
  * on each draw.
  * (A future version may add subtracting a given reward from the pool)
+ * Each reward can have a weight (by default 1), and is chosen with a probability
+ * proportional to its weight among the rewards that can be given.
  *
  * For example: a user can earn a mystery box
  * reward (<code>RandomReward</code>, which in fact grants the user a random reward between a
@@ -40,6 +54,7 @@ import java.util.Random;
  *
  * Created by refaelos on 13/05/14.
  */
+@JSONCreatable
 public class RandomReward extends Reward {
 
     /**
@@ -51,6 +66,20 @@ public class RandomReward extends Reward {
      *                this must not be null and contain at least 1 item
      */
     public RandomReward(String rewardId, String name, List<Reward> rewards) {
+        this(rewardId, name, rewards, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param rewardId see parent
+     * @param name see parent
+     * @param rewards a list of rewards from which to choose the reward randomly
+     *                this must not be null and contain at least 1 item
+     * @param weights the weight of each reward in <code>rewards</code>,
+     *                or <code>null</code> to give all rewards the same weight
+     */
+    public RandomReward(String rewardId, String name, List<Reward> rewards, double[] weights) {
         super(rewardId, name);
 
         if (rewards == null || rewards.isEmpty()) {
@@ -58,7 +87,8 @@ public class RandomReward extends Reward {
             SoomlaUtils.LogError(TAG, error);
         }
 
-        mRewards = rewards;
+        mRewards = rewards != null ? StampedRewardList.wrap(rewards, new WeightsUpdater()) : null;
+        mWeights = weights != null ? weights.clone() : null;
     }
 
     /**
@@ -71,22 +101,49 @@ public class RandomReward extends Reward {
     public RandomReward(JSONObject jsonObject) throws JSONException {
         super(jsonObject);
 
-        mRewards = new ArrayList<Reward>();
         JSONArray rewardsArr = jsonObject.optJSONArray(com.soomla.data.JSONConsts.SOOM_REWARDS);
         if (rewardsArr == null) {
             SoomlaUtils.LogWarning(TAG, "reward has no meaning without children");
             rewardsArr = new JSONArray();
         }
 
-        // Iterate over all rewards in the JSON array and for each one create
-        // an instance according to the reward type
+        // the rewards are created from their JSON when first used
+        JSONObject[] rewardsJSON = new JSONObject[rewardsArr.length()];
         for (int i = 0; i < rewardsArr.length(); i++) {
-            JSONObject rewardJSON = rewardsArr.getJSONObject(i);
-            Reward reward = Reward.fromJSONObject(rewardJSON);
-            if (reward != null) {
-                mRewards.add(reward);
+            rewardsJSON[i] = rewardsArr.getJSONObject(i);
+        }
+        List<JSONObject> kept = new ArrayList<JSONObject>(rewardsJSON.length);
+        mRewards = StampedRewardList.wrap(LazyRewardList.ofJSON(rewardsJSON, kept), new WeightsUpdater());
+        mWeights = new double[kept.size()];
+        for (int i = 0; i < mWeights.length; i++) {
+            mWeights[i] = kept.get(i).optDouble(JSONConsts.SOOM_REWARD_WEIGHT, DEFAULT_WEIGHT);
+        }
+    }
+
+    /**
+     * Copy constructor, see <code>SoomlaEntity.copy</code>.
+     * The rewards are copied too, keeping their IDs.
+     */
+    protected RandomReward(RandomReward source, String newId) {
+        super(source, newId);
+
+        List<Reward> rewards = new ArrayList<Reward>(source.mRewards.size());
+        double[] weights = new double[source.mRewards.size()];
+        for (int i = 0; i < source.mRewards.size(); i++) {
+            Reward reward = source.mRewards.get(i);
+            Reward copy = reward.clone(reward.getID());
+            if (copy != null) {
+                weights[rewards.size()] = source.getWeight(i);
+                rewards.add(copy);
             }
         }
+        mRewards = StampedRewardList.wrap(rewards, new WeightsUpdater());
+        mWeights = Arrays.copyOf(weights, rewards.size());
+    }
+
+    @Override
+    protected Reward copy(String newId) {
+        return getClass() == RandomReward.class ? new RandomReward(this, newId) : null;
     }
 
     /**
@@ -99,8 +156,13 @@ public class RandomReward extends Reward {
         JSONObject jsonObject = super.toJSONObject();
         try {
             JSONArray rewardsArr = new JSONArray();
-            for (Reward reward : mRewards) {
-                rewardsArr.put(reward.toJSONObject());
+            for (int i = 0; i < mRewards.size(); i++) {
+                JSONObject rewardJSON = mRewards.get(i).toJSONObject();
+                double weight = getWeight(i);
+                if (weight != DEFAULT_WEIGHT) {
+                    rewardJSON.put(JSONConsts.SOOM_REWARD_WEIGHT, weight);
+                }
+                rewardsArr.put(rewardJSON);
             }
             jsonObject.put(com.soomla.data.JSONConsts.SOOM_REWARDS, rewardsArr);
         } catch (JSONException e) {
@@ -110,6 +172,37 @@ public class RandomReward extends Reward {
         return jsonObject;
     }
 
+    /**
+     * Builds the JSON string from the kept JSON strings of the rewards,
+     * so only rewards that changed are serialized again.
+     * The rewards mark this string as outdated when they change.
+     */
+    @Override
+    protected String buildJSONString() {
+        mJSONStamp = mRewards.getStamp();
+        mJSONSize = mRewards.size();
+        String[] rewardsJSON = toJSONStrings(this, mRewards);
+        if (getClass() != RandomReward.class) {
+            // subclasses may serialize more fields
+            return super.buildJSONString();
+        }
+
+        double[] weights = new double[rewardsJSON.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = getWeight(i);
+        }
+        JSONObject jsonObject = super.toJSONObject();
+        return jsonObject != null ? withRewards(jsonObject, rewardsJSON, weights) : null;
+    }
+
+    /**
+     * Checks that the rewards list didn't change, the weights change only with it.
+     */
+    @Override
+    protected boolean isJSONStringCurrent() {
+        return mRewards.getStamp() == mJSONStamp && mRewards.size() == mJSONSize;
+    }
+
     /**
      * Gives a random reward from the list of rewards.
      *
@@ -117,21 +210,13 @@ public class RandomReward extends Reward {
      */
     @Override
     protected boolean giveInner() {
-        List<Reward> canBeGivenRewards = new ArrayList<Reward>();
-        for (Reward reward : this.mRewards) {
-            if (reward.canGive()) {
-                canBeGivenRewards.add(reward);
-            }
-        }
-
-        if (canBeGivenRewards.isEmpty()) {
+        final int picked = pickRewardIndex();
+        if (picked < 0) {
             SoomlaUtils.LogDebug(TAG, "No more rewards to give in this Random Reward: " + this.mID);
             return false;
         }
 
-        Random rand = new Random();
-        int n = rand.nextInt(canBeGivenRewards.size());
-        final Reward randomReward = canBeGivenRewards.get(n);
+        final Reward randomReward = mRewards.get(picked);
         randomReward.give();
         mLastGivenReward = randomReward;
 
@@ -151,17 +236,348 @@ public class RandomReward extends Reward {
         return taken;
     }
 
+    /**
+     * Picks a reward that can be given, and returns its position in <code>getRewards()</code> (-1 if none).
+     * Rewards that can't be given anymore are dropped from the sampled rewards
+     * (and come back when their state changes), so a pick doesn't go over all rewards.
+     * Rewards with time ranges, a cron recurrence or a rolling window limit in their
+     * schedule may become available at any time, so they're always sampled, and checked when picked.
+     */
+    synchronized int pickRewardIndex() {
+        ensureEligibility();
+
+        while (mStaleCount > 0) {
+            int i = mStaleIdx[--mStaleCount];
+            mStale[i] = false;
+            boolean candidate = isTimeBound(mRewards.get(i)) || mRewards.get(i).canGive();
+            if (candidate != mCandidate[i]) {
+                mCandidate[i] = candidate;
+                mTable = null;
+            }
+        }
+
+        for (int attempt = 0; attempt < MAX_PICK_ATTEMPTS; attempt++) {
+            if (mTable == null) {
+                int count = 0;
+                for (int i = 0; i < mCandidate.length; i++) {
+                    if (mCandidate[i]) {
+                        mTableIdx[count++] = i;
+                    }
+                }
+                mTable = new AliasTable(mTableIdx, mWeights, count);
+            }
+
+            int i = mTable.sample(sRandom);
+            if (i < 0) {
+                return -1;
+            }
+            Reward reward = mRewards.get(i);
+            if (reward.canGive()) {
+                return i;
+            }
+            if (isTimeBound(reward)) {
+                break;
+            }
+            mCandidate[i] = false;
+            mTable = null;
+        }
+
+        return pickRewardIndexByScan();
+    }
+
+    /**
+     * Picks a reward that can be given by checking all rewards.
+     * This also refreshes which rewards are sampled.
+     */
+    private int pickRewardIndexByScan() {
+        // the table is rebuilt on the next pick, so its index buffer can hold the givable rewards
+        mTable = null;
+        int count = 0;
+        double total = 0;
+        for (int i = 0; i < mRewards.size(); i++) {
+            Reward reward = mRewards.get(i);
+            boolean canGive = reward.canGive();
+            mCandidate[i] = canGive || isTimeBound(reward);
+            if (canGive && mWeights[i] > 0) {
+                mTableIdx[count++] = i;
+                total += mWeights[i];
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+
+        double target = sRandom.nextDouble() * total;
+        for (int j = 0; j < count - 1; j++) {
+            target -= mWeights[mTableIdx[j]];
+            if (target < 0) {
+                return mTableIdx[j];
+            }
+        }
+        return mTableIdx[count - 1];
+    }
+
+    private void ensureEligibility() {
+        int size = mRewards.size();
+        int stamp = mRewards.getStamp();
+        if (mCandidate != null && mCandidate.length == size && mCandidateStamp == stamp) {
+            return;
+        }
+
+        // first pick, or the rewards list was changed through getRewards()
+        mCandidateStamp = stamp;
+        // weights follow the rewards added or removed through getRewards(), this only
+        // covers changes made directly to the list given to the constructor
+        if (mWeights == null || mWeights.length != size) {
+            double[] weights = new double[size];
+            Arrays.fill(weights, DEFAULT_WEIGHT);
+            if (mWeights != null) {
+                System.arraycopy(mWeights, 0, weights, 0, Math.min(size, mWeights.length));
+            }
+            mWeights = weights;
+        }
+
+        mCandidate = new boolean[size];
+        mStale = new boolean[size];
+        mStaleIdx = new int[size];
+        mStaleCount = 0;
+        mTableIdx = new int[size];
+        mTable = null;
+
+        Map<String, int[]> childIdx = new HashMap<String, int[]>();
+        for (int i = 0; i < size; i++) {
+            Reward reward = mRewards.get(i);
+            mCandidate[i] = isTimeBound(reward) || reward.canGive();
+
+            int[] indices = childIdx.get(reward.getID());
+            if (indices == null) {
+                indices = new int[] { i };
+            } else {
+                indices = Arrays.copyOf(indices, indices.length + 1);
+                indices[indices.length - 1] = i;
+            }
+            childIdx.put(reward.getID(), indices);
+        }
+
+        Map<String, int[]> previous = mChildIdx;
+        mChildIdx = childIdx;
+        updateOwnership(previous != null ? previous.keySet() : Collections.<String>emptySet(),
+                childIdx.keySet());
+    }
+
+    /**
+     * Updates which children this reward is notified about, see <code>sOwnersByChild</code>.
+     */
+    private void updateOwnership(Set<String> previousIds, Set<String> ids) {
+        synchronized (sOwnersByChild) {
+            for (String id : previousIds) {
+                if (ids.contains(id)) {
+                    continue;
+                }
+                List<WeakReference<RandomReward>> owners = sOwnersByChild.get(id);
+                if (owners == null) {
+                    continue;
+                }
+                for (Iterator<WeakReference<RandomReward>> it = owners.iterator(); it.hasNext(); ) {
+                    RandomReward owner = it.next().get();
+                    if (owner == null || owner == this) {
+                        it.remove();
+                    }
+                }
+                if (owners.isEmpty()) {
+                    sOwnersByChild.remove(id);
+                }
+            }
+            for (String id : ids) {
+                if (previousIds.contains(id)) {
+                    continue;
+                }
+                List<WeakReference<RandomReward>> owners = sOwnersByChild.get(id);
+                if (owners == null) {
+                    owners = new ArrayList<WeakReference<RandomReward>>(1);
+                    sOwnersByChild.put(id, owners);
+                }
+                owners.add(new WeakReference<RandomReward>(this));
+            }
+        }
+    }
+
+    /**
+     * Retrieves the <code>RandomReward</code>s holding the given child,
+     * dropping the ones that are gone.
+     */
+    private static List<RandomReward> ownersOf(String rewardId) {
+        synchronized (sOwnersByChild) {
+            List<WeakReference<RandomReward>> owners = sOwnersByChild.get(rewardId);
+            if (owners == null) {
+                return Collections.emptyList();
+            }
+            List<RandomReward> alive = new ArrayList<RandomReward>(owners.size());
+            for (Iterator<WeakReference<RandomReward>> it = owners.iterator(); it.hasNext(); ) {
+                RandomReward owner = it.next().get();
+                if (owner == null) {
+                    it.remove();
+                } else {
+                    alive.add(owner);
+                }
+            }
+            if (owners.isEmpty()) {
+                sOwnersByChild.remove(rewardId);
+            }
+            return alive;
+        }
+    }
+
+    private synchronized void markStale(String rewardId) {
+        int[] indices = mChildIdx != null ? mChildIdx.get(rewardId) : null;
+        if (mStale == null || indices == null) {
+            return;
+        }
+        for (int i : indices) {
+            if (i < mStale.length && !mStale[i]) {
+                mStale[i] = true;
+                mStaleIdx[mStaleCount++] = i;
+            }
+        }
+    }
+
+    /**
+     * Checks if any of the rewards can be given right now, without picking one.
+     */
+    boolean hasRewardToGive() {
+        for (int i = 0; i < mRewards.size(); i++) {
+            Reward reward = mRewards.get(i);
+            if (getWeight(i) > 0 && reward.getSchedule() != null && reward.canGive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keeps each weight with its reward when rewards are added or removed
+     * through <code>getRewards()</code>.  Added rewards get the default weight.
+     */
+    private class WeightsUpdater implements StampedRewardList.Listener {
+        @Override
+        public void onRewardAdded(int index) {
+            synchronized (RandomReward.this) {
+                if (mWeights == null) {
+                    return;
+                }
+                int at = Math.min(index, mWeights.length);
+                double[] weights = new double[mWeights.length + 1];
+                System.arraycopy(mWeights, 0, weights, 0, at);
+                weights[at] = DEFAULT_WEIGHT;
+                System.arraycopy(mWeights, at, weights, at + 1, mWeights.length - at);
+                mWeights = weights;
+            }
+        }
+
+        @Override
+        public void onRewardRemoved(int index) {
+            synchronized (RandomReward.this) {
+                if (mWeights == null || index >= mWeights.length) {
+                    return;
+                }
+                double[] weights = new double[mWeights.length - 1];
+                System.arraycopy(mWeights, 0, weights, 0, index);
+                System.arraycopy(mWeights, index + 1, weights, index, weights.length - index);
+                mWeights = weights;
+            }
+        }
+    }
+
+    private static boolean isTimeBound(Reward reward) {
+        Schedule schedule = reward.getSchedule();
+        // a window limit frees a slot as time passes, without a state change
+        return schedule != null && (schedule.getCronRecurrence() != null || schedule.hasWindowLimit()
+                || (schedule.getTimeRanges() != null && !schedule.getTimeRanges().isEmpty()));
+    }
+
+    /**
+     * Seeds the random generator shared by all <code>RandomReward</code>s,
+     * making the picks reproducible (e.g. for testing).
+     *
+     * @param seed the seed to use
+     */
+    public static void setRandomSeed(long seed) {
+        sRandom = new Random(seed);
+    }
+
+    @Override
+    List<Reward> getChildRewards() {
+        // the viewed list, so lazily loaded children are registered as they load
+        return mRewards != null ? mRewards.getSource() : null;
+    }
+
     /** Setters and Getters **/
 
+    Reward getLastGivenReward() {
+        return mLastGivenReward;
+    }
+
+    void setLastGivenReward(Reward lastGivenReward) {
+        mLastGivenReward = lastGivenReward;
+    }
+
     public List<Reward> getRewards() {
         return mRewards;
     }
 
+    /**
+     * Retrieves the weight of the reward in the given position.
+     *
+     * @param i the position of the reward in <code>getRewards()</code>
+     * @return the reward's weight
+     */
+    public synchronized double getWeight(int i) {
+        return mWeights != null && i < mWeights.length ? mWeights[i] : DEFAULT_WEIGHT;
+    }
+
 
     /** Private Members **/
 
     private static final String TAG = "SOOMLA RandomReward";
 
-    private List<Reward> mRewards;
+    static final double DEFAULT_WEIGHT = 1;
+    private static final int MAX_PICK_ATTEMPTS = 8;
+
+    private static volatile Random sRandom = new Random();
+
+    /**
+     * The <code>RandomReward</code>s holding each child, by the child's ID.
+     * A single state listener marks the changed child as stale in each of them,
+     * so a state change costs the number of <code>RandomReward</code>s holding
+     * the child, not the number of all <code>RandomReward</code>s.
+     */
+    private static final Map<String, List<WeakReference<RandomReward>>> sOwnersByChild =
+            new HashMap<String, List<WeakReference<RandomReward>>>();
+
+    static {
+        RewardStorage.addStateListener(new RewardStorage.StateListener() {
+            @Override
+            public void onRewardStateChanged(String rewardId) {
+                // the owners are notified outside the map's lock, as they lock themselves
+                for (RandomReward owner : ownersOf(rewardId)) {
+                    owner.markStale(rewardId);
+                }
+            }
+        });
+    }
+
+    private StampedRewardList mRewards;
+    private double[] mWeights;
+    private int mJSONStamp;
+    private int mJSONSize;
     private Reward mLastGivenReward;
+
+    private boolean[] mCandidate;
+    private boolean[] mStale;
+    private int[] mStaleIdx;
+    private int mStaleCount;
+    private int[] mTableIdx;
+    private AliasTable mTable;
+    private int mCandidateStamp;
+    private Map<String, int[]> mChildIdx;
 }
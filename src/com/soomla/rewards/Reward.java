@@ -16,16 +16,38 @@
 
 package com.soomla.rewards;
 
+import android.os.Handler;
+import android.os.Looper;
+
+import com.soomla.Clock;
+import com.soomla.EntityRegistry;
 import com.soomla.Schedule;
 import com.soomla.SoomlaEntity;
 import com.soomla.SoomlaUtils;
 import com.soomla.data.JSONConsts;
+import com.soomla.data.RewardHandle;
 import com.soomla.data.RewardStorage;
 import com.soomla.util.JSONFactory;
+import com.soomla.util.SerialLanesExecutor;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * A reward is an entity which can be earned by the user for meeting certain
  * criteria in game progress.  For example - a user can earn a badge for completing
@@ -44,6 +66,7 @@ public abstract class Reward extends SoomlaEntity<Reward> {
     public Reward(String rewardId, String name) {
         super(name, "", rewardId);
         mSchedule = Schedule.AnyTimeOnce();
+        mStorage = RewardStorage.handle(mID);
     }
 
     /**
@@ -56,11 +79,21 @@ public abstract class Reward extends SoomlaEntity<Reward> {
     public Reward(JSONObject jsonObject) throws JSONException {
         super(jsonObject);
         JSONObject scheduleObj = jsonObject.optJSONObject(JSONConsts.SOOM_SCHEDULE);
-        if (scheduleObj != null) {
-            mSchedule = Schedule.AnyTimeOnce();
-        } else {
-            mSchedule = null;
-        }
+        mSchedule = scheduleObj != null ? scheduleFromJSON(mID, scheduleObj) : null;
+        mStorage = RewardStorage.handle(mID);
+    }
+
+    /**
+     * Copy constructor, see <code>SoomlaEntity.copy</code>.
+     * The schedule is immutable and shared with the source.
+     *
+     * @param source the reward to copy
+     * @param newId the ID of the copy
+     */
+    protected Reward(Reward source, String newId) {
+        super(source, newId);
+        mSchedule = source.mSchedule;
+        mStorage = RewardStorage.handle(mID);
     }
 
     /**
@@ -93,6 +126,26 @@ public abstract class Reward extends SoomlaEntity<Reward> {
         return sJSONFactory.create(jsonObject, Reward.class.getPackage().getName());
     }
 
+    /**
+     * Registers a creator for rewards with the given class name in their JSON,
+     * so loading them doesn't use reflection.  Use it for custom rewards that are
+     * loaded in large numbers.
+     *
+     * @param className the reward's class name as it appears in the JSON
+     * @param creator creates the reward from its JSON
+     */
+    public static void registerJSONCreator(String className, JSONFactory.Creator<? extends Reward> creator) {
+        sCustomCreators.add(className);
+        sJSONFactory.register(Reward.class.getPackage().getName() + "." + className, creator);
+    }
+
+    /**
+     * @return <code>true</code> if rewards with the given class name are created by a registered creator
+     */
+    static boolean hasCustomCreator(String className) {
+        return sCustomCreators.contains(className);
+    }
+
     /**
      * Grants this reward to the user. Use this method in cases where the user
      * has positive progress in game play and is eligible for earning this reward.
@@ -107,7 +160,7 @@ public abstract class Reward extends SoomlaEntity<Reward> {
         }
 
         if (giveInner()) {
-            RewardStorage.setRewardStatus(this.getID(), true);
+            mStorage.setRewardStatus(true);
             return true;
         }
 
@@ -120,26 +173,150 @@ public abstract class Reward extends SoomlaEntity<Reward> {
      * indicating that his \ her previously earned reward should be recalled.
      */
     public boolean take() {
-        if (!RewardStorage.isRewardGiven(this.getID())) {
+        if (!mStorage.isRewardGiven()) {
             SoomlaUtils.LogDebug(TAG, "Reward not given. id: " + mID);
             return false;
         }
 
         if (takeInner()) {
-            RewardStorage.setRewardStatus(this.getID(), false);
+            mStorage.setRewardStatus(false);
             return true;
         }
 
         return false;
     }
 
+    /**
+     * Listener for the result of <code>giveAsync</code> and <code>takeAsync</code>
+     */
+    public interface ResultCallback {
+
+        /**
+         * Called on the main thread when the operation is done.
+         *
+         * @param reward the reward that was given or taken
+         * @param success the result of <code>give</code> or <code>take</code>
+         */
+        void onResult(Reward reward, boolean success);
+    }
+
+    /**
+     * Gives this reward on a background thread.
+     * Calls of the same reward run in the order they were made,
+     * different rewards are given in parallel.
+     *
+     * @return a <code>Future</code> of the result of <code>give</code>
+     */
+    public Future<Boolean> giveAsync() {
+        return giveAsync(null);
+    }
+
+    /**
+     * Gives this reward on a background thread.
+     * See <code>giveAsync()</code>
+     *
+     * @param callback a callback to run on the main thread when done, can be null
+     * @return a <code>Future</code> of the result of <code>give</code>
+     */
+    public Future<Boolean> giveAsync(ResultCallback callback) {
+        return runAsync(true, callback);
+    }
+
+    /**
+     * Takes this reward on a background thread.
+     * Calls of the same reward run in the order they were made,
+     * different rewards are taken in parallel.
+     *
+     * @return a <code>Future</code> of the result of <code>take</code>
+     */
+    public Future<Boolean> takeAsync() {
+        return takeAsync(null);
+    }
+
+    /**
+     * Takes this reward on a background thread.
+     * See <code>takeAsync()</code>
+     *
+     * @param callback a callback to run on the main thread when done, can be null
+     * @return a <code>Future</code> of the result of <code>take</code>
+     */
+    public Future<Boolean> takeAsync(ResultCallback callback) {
+        return runAsync(false, callback);
+    }
+
+    private Future<Boolean> runAsync(final boolean give, final ResultCallback callback) {
+        FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                final boolean success = give ? give() : take();
+                if (callback != null) {
+                    getMainThread().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(Reward.this, success);
+                        }
+                    });
+                }
+                return success;
+            }
+        });
+        getAsyncExecutor().execute(mID, task);
+        return task;
+    }
+
+    private static synchronized SerialLanesExecutor getAsyncExecutor() {
+        if (sAsyncExecutor == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "SOOMLA Rewards");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            sAsyncExecutor = new SerialLanesExecutor(pool);
+        }
+        return sAsyncExecutor;
+    }
+
+    private static synchronized Handler getMainThread() {
+        if (sMainThread == null) {
+            sMainThread = new Handler(Looper.getMainLooper());
+        }
+        return sMainThread;
+    }
+
     /**
      * Checks if this reward can be given
      *
      * @return <code>true</code> if can be given, <code>false</code> otherwise
      */
     public boolean canGive() {
-        return mSchedule.approve(RewardStorage.getTimesGiven(this.getID()));
+        if (!mSchedule.hasWindowLimit()) {
+            return mSchedule.approve(mStorage.getTimesGiven());
+        }
+
+        long now = Clock.getDefault().currentTimeMillis();
+        mStorage.ensureHistoryCapacity(mSchedule.getWindowLimit());
+        int timesInWindow = mStorage.getTimesGivenInWindow(now, mSchedule.getWindowMillis());
+        return mSchedule.approve(mStorage.getTimesGiven(), timesInWindow, now);
+    }
+
+    /**
+     * Finds when the schedule's rolling window limit lets this reward be given again.
+     *
+     * @param nowMillis the current time
+     * @return <code>nowMillis</code> if the window has room (or the schedule has no
+     * window limit), otherwise the time a slot frees up
+     */
+    public long getNextWindowSlotTime(long nowMillis) {
+        if (!mSchedule.hasWindowLimit()) {
+            return nowMillis;
+        }
+        return mStorage.getNextWindowSlotTime(nowMillis, mSchedule.getWindowMillis(), mSchedule.getWindowLimit());
     }
 
     /**
@@ -148,7 +325,7 @@ public abstract class Reward extends SoomlaEntity<Reward> {
      * @return <code>true</code> if owned, <code>false</code> otherwise
      */
     public boolean isOwned() {
-        return RewardStorage.isRewardGiven(this.getID());
+        return mStorage.isRewardGiven();
     }
 
     /**
@@ -168,18 +345,261 @@ public abstract class Reward extends SoomlaEntity<Reward> {
      */
     protected abstract boolean takeInner();
 
+    /**
+     * Generates the schedule of a reward loaded from JSON.
+     * A schedule that isn't valid is replaced by the default one, as before
+     * schedules were loaded from JSON, so the reward can still be loaded.
+     *
+     * @param rewardId the reward's ID, for logging
+     * @param jsonSched the schedule's JSON
+     * @return the schedule, or <code>Schedule.AnyTimeOnce()</code> if it's not valid
+     */
+    static Schedule scheduleFromJSON(String rewardId, JSONObject jsonSched) {
+        try {
+            return Schedule.fromJSONObject(jsonSched);
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Invalid schedule for reward " + rewardId
+                    + ", using the default one. " + e.getMessage());
+            return Schedule.AnyTimeOnce();
+        }
+    }
+
+    /**
+     * Sets the fields a reward loaded from JSON has beyond its ID and name,
+     * for loaders that don't go through the <code>JSONObject</code> constructor.
+     */
+    void setLoadedState(String description, Schedule schedule) {
+        setDescription(description);
+        setSchedule(schedule);
+    }
+
+    /**
+     * Also marks the JSON strings of the rewards made of this one as outdated.
+     */
+    @Override
+    protected void invalidateJSONString() {
+        super.invalidateJSONString();
+
+        List<Reward> parents;
+        synchronized (sJSONParentsLock) {
+            if (mJSONParents == null) {
+                return;
+            }
+            parents = new ArrayList<Reward>(mJSONParents.size());
+            for (Iterator<WeakReference<Reward>> it = mJSONParents.iterator(); it.hasNext(); ) {
+                Reward parent = it.next().get();
+                if (parent == null) {
+                    it.remove();
+                } else {
+                    parents.add(parent);
+                }
+            }
+        }
+        for (Reward parent : parents) {
+            parent.invalidateJSONString();
+        }
+    }
+
+    /**
+     * Notes that the given reward includes this reward's JSON string in its own,
+     * so it's told when this reward changes.  The reward is held weakly.
+     */
+    private void addJSONParent(Reward parent) {
+        synchronized (sJSONParentsLock) {
+            if (mJSONParents == null) {
+                mJSONParents = new ArrayList<WeakReference<Reward>>(1);
+            }
+            for (WeakReference<Reward> ref : mJSONParents) {
+                if (ref.get() == parent) {
+                    return;
+                }
+            }
+            mJSONParents.add(new WeakReference<Reward>(parent));
+        }
+    }
+
+    /**
+     * Retrieves the JSON strings of the rewards a reward is made of, kept by the rewards
+     * unless they changed.  The reward is then told when any of them changes.
+     * Rewards of a lazily loaded list that weren't created yet are serialized
+     * from their JSON without creating them.
+     *
+     * @param parent the reward made of <code>rewards</code>
+     * @param rewards the rewards
+     */
+    static String[] toJSONStrings(Reward parent, List<Reward> rewards) {
+        List<Reward> source = rewards instanceof StampedRewardList
+                ? ((StampedRewardList) rewards).getSource() : rewards;
+        if (source instanceof LazyRewardList) {
+            return ((LazyRewardList) source).toJSONStrings(parent);
+        }
+
+        String[] jsonStrings = new String[rewards.size()];
+        for (int i = 0; i < jsonStrings.length; i++) {
+            jsonStrings[i] = toJSONString(parent, rewards.get(i));
+        }
+        return jsonStrings;
+    }
+
+    /**
+     * Retrieves the JSON string of one of the rewards a reward is made of,
+     * and tells it to mark the reward's JSON string as outdated when it changes.
+     */
+    static String toJSONString(Reward parent, Reward reward) {
+        reward.addJSONParent(parent);
+        return reward.toJSONString();
+    }
+
+    /**
+     * Builds the JSON string of a reward made of other rewards, from its own fields
+     * and the JSON strings of its rewards, as <code>toJSONObject</code> would.
+     *
+     * @param jsonObject the reward's own fields
+     * @param rewardsJSON the JSON strings of the reward's rewards
+     * @param weights the weights of the rewards, or <code>null</code> if they have none
+     */
+    static String withRewards(JSONObject jsonObject, String[] rewardsJSON, double[] weights) {
+        String head = jsonObject.toString();
+        StringBuilder json = new StringBuilder(head.length() + rewardsJSON.length * 128);
+        json.append(head, 0, head.length() - 1);
+        if (head.length() > 2) {
+            json.append(',');
+        }
+        json.append(JSONObject.quote(JSONConsts.SOOM_REWARDS)).append(":[");
+        for (int i = 0; i < rewardsJSON.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            String rewardJSON = rewardsJSON[i];
+            if (rewardJSON == null) {
+                json.append("null");
+            } else if (weights == null || weights[i] == RandomReward.DEFAULT_WEIGHT) {
+                json.append(rewardJSON);
+            } else {
+                json.append(rewardJSON, 0, rewardJSON.length() - 1);
+                try {
+                    String weight = JSONObject.numberToString(weights[i]);
+                    if (rewardJSON.length() > 2) {
+                        json.append(',');
+                    }
+                    json.append(JSONObject.quote(JSONConsts.SOOM_REWARD_WEIGHT)).append(':').append(weight);
+                } catch (JSONException e) {
+                    SoomlaUtils.LogError(TAG, "An error occurred while generating JSON object.");
+                }
+                json.append('}');
+            }
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Registers a reward and its children in the <code>EntityRegistry</code>.
+     * Children of a lazily loaded list are registered as they are created.
+     *
+     * @param reward the reward to register
+     */
+    static void registerTree(Reward reward) {
+        EntityRegistry.register(reward);
+        List<Reward> children = reward.getChildRewards();
+        if (children instanceof LazyRewardList) {
+            ((LazyRewardList) children).registerOnLoad();
+        } else if (children != null) {
+            for (Reward child : children) {
+                registerTree(child);
+            }
+        }
+    }
+
+    /**
+     * Removes a reward and its children from the <code>EntityRegistry</code>, for the ones
+     * still registered, except the given rewards.  Children of a lazily loaded list that
+     * weren't created yet are no longer registered when they are.
+     *
+     * @param reward the reward to unregister
+     * @param kept the rewards to keep registered, compared by identity
+     */
+    static void unregisterTree(Reward reward, Set<Reward> kept) {
+        if (kept.contains(reward)) {
+            return;
+        }
+        EntityRegistry.unregister(reward);
+        List<Reward> children = reward.getChildRewards();
+        if (children instanceof LazyRewardList) {
+            children = ((LazyRewardList) children).unregisterOnLoad();
+        }
+        if (children != null) {
+            for (Reward child : children) {
+                unregisterTree(child, kept);
+            }
+        }
+    }
+
+    /**
+     * Adds a reward and its children to the given set, without creating
+     * the children of a lazily loaded list that weren't created yet.
+     *
+     * @param reward the reward
+     * @param rewards receives the rewards
+     */
+    static void collectTree(Reward reward, Set<Reward> rewards) {
+        if (!rewards.add(reward)) {
+            return;
+        }
+        List<Reward> children = reward.getChildRewards();
+        if (children instanceof LazyRewardList) {
+            children = ((LazyRewardList) children).getCreated();
+        }
+        if (children != null) {
+            for (Reward child : children) {
+                collectTree(child, rewards);
+            }
+        }
+    }
+
+    /**
+     * @return the rewards this reward is made of, or <code>null</code> if it has none
+     */
+    List<Reward> getChildRewards() {
+        return null;
+    }
+
     /** Setters and Getters **/
 
     public Schedule getSchedule() {
         return mSchedule;
     }
 
+    protected void setSchedule(Schedule schedule) {
+        mSchedule = schedule;
+        invalidateJSONString();
+    }
+
+    /**
+     * Retrieves the handle to this reward's persisted state.
+     *
+     * @return the reward's <code>RewardHandle</code>
+     */
+    public RewardHandle getStorageHandle() {
+        return mStorage;
+    }
+
     /** Private Members **/
 
     private static final String TAG = "SOOMLA Reward";
 
     private static JSONFactory<Reward> sJSONFactory = new JSONFactory<Reward>();
+    private static final Set<String> sCustomCreators = Collections.synchronizedSet(new HashSet<String>());
+
+    private static SerialLanesExecutor sAsyncExecutor;
+    private static Handler sMainThread;
 
+    private static final Object sJSONParentsLock = new Object();
+
+    // Subclasses that change it directly, instead of through setSchedule,
+    // must call invalidateJSONString() afterwards.
     protected Schedule mSchedule;
+    private List<WeakReference<Reward>> mJSONParents;
+
+    protected final RewardHandle mStorage;
 }
 
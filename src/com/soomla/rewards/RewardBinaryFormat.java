@@ -0,0 +1,628 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.rewards;
+
+import com.soomla.CronExpression;
+import com.soomla.Schedule;
+import com.soomla.SoomlaUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of reward catalogs, much smaller and faster to load than their JSON.
+ *
+ * The encoding is:
+ * <ul>
+ *     <li>the magic <code>SMRC</code> and the format version, as a varint</li>
+ *     <li>a string table: the number of strings, then each as a varint length and its UTF-8 bytes.
+ *     IDs, names, descriptions, class names and icon URLs refer to it by index + 1 (0 for none)</li>
+ *     <li>the number of rewards, then each reward: its class name, ID, name and description,
+ *     a flags byte, then the schedule block, icon URL and children the flags call for.
+ *     Children of a <code>RandomReward</code> are each preceded by their weight.
+ *     Rewards of other classes than the ones in this package are kept as their JSON</li>
+ * </ul>
+ * Children are skipped over when reading their parent and decoded from the buffer
+ * when first accessed, so the buffer is kept until they all are.
+ * Rewards of a class with a creator registered through <code>Reward.registerJSONCreator</code>
+ * are decoded, then created by that creator from their JSON, as when loading JSON.
+ * Integers are zigzag varints, so small negative values stay small.
+ */
+public class RewardBinaryFormat {
+
+    public static final int VERSION = 1;
+
+    /**
+     * Encodes a catalog of rewards.
+     *
+     * @param rewards the rewards to encode
+     * @return the encoded catalog
+     */
+    public static byte[] write(List<? extends Reward> rewards) {
+        Encoder body = new Encoder();
+        body.writeInt(rewards.size());
+        for (Reward reward : rewards) {
+            body.writeReward(reward);
+        }
+
+        Encoder out = new Encoder();
+        out.writeRaw(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(body.mStrings.size());
+        for (String string : body.mStrings) {
+            byte[] bytes = string.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.writeRaw(bytes);
+        }
+        out.writeRaw(Arrays.copyOf(body.mBytes, body.mLength));
+        return Arrays.copyOf(out.mBytes, out.mLength);
+    }
+
+    /**
+     * Encodes a catalog of rewards to a stream.
+     *
+     * @param rewards the rewards to encode
+     * @param out the stream to write to, left open
+     * @throws IOException if the stream can't be written
+     */
+    public static void write(List<? extends Reward> rewards, OutputStream out) throws IOException {
+        out.write(write(rewards));
+    }
+
+    /**
+     * Decodes a catalog of rewards.  Rewards that fail to load are skipped,
+     * as when loading them from JSON.  The loaded rewards and their children
+     * are registered in the <code>EntityRegistry</code>.
+     *
+     * @param buffer the encoded catalog, from its position to its limit
+     * @return the rewards, or <code>null</code> if the buffer is not a valid catalog
+     */
+    public static List<Reward> read(ByteBuffer buffer) {
+        try {
+            List<Reward> rewards = new Decoder(buffer).readCatalog();
+            for (Reward reward : rewards) {
+                Reward.registerTree(reward);
+            }
+            return rewards;
+        } catch (BufferUnderflowException e) {
+            SoomlaUtils.LogError(TAG, "Unable to read rewards: the catalog is truncated");
+        } catch (IllegalArgumentException e) {
+            SoomlaUtils.LogError(TAG, "Unable to read rewards: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a catalog of rewards from a file, mapping it into memory.
+     *
+     * @param file the encoded catalog
+     * @return the rewards, or <code>null</code> if the file can't be read or is not a valid catalog
+     */
+    public static List<Reward> read(File file) {
+        ByteBuffer buffer;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Unable to map " + file + ": " + e.getMessage());
+            return null;
+        }
+        return read(buffer);
+    }
+
+    /**
+     * Converts a JSON catalog of rewards to the binary encoding.
+     *
+     * @param rewards the JSON representations of the rewards
+     * @return the encoded catalog
+     * @throws JSONException if an element of <code>rewards</code> is not an object
+     */
+    public static byte[] fromJSON(JSONArray rewards) throws JSONException {
+        List<Reward> loaded = new ArrayList<Reward>(rewards.length());
+        for (int i = 0; i < rewards.length(); i++) {
+            Reward reward = Reward.fromJSONObject(rewards.getJSONObject(i));
+            if (reward != null) {
+                loaded.add(reward);
+            }
+        }
+        return write(loaded);
+    }
+
+    /**
+     * Converts an encoded catalog of rewards to JSON.
+     *
+     * @param buffer the encoded catalog
+     * @return the JSON representations of the rewards, or <code>null</code>
+     * if the buffer is not a valid catalog
+     */
+    public static JSONArray toJSON(ByteBuffer buffer) {
+        List<Reward> rewards = read(buffer);
+        if (rewards == null) {
+            return null;
+        }
+        JSONArray json = new JSONArray();
+        for (Reward reward : rewards) {
+            json.put(reward.toJSONObject());
+        }
+        return json;
+    }
+
+    private static class Encoder {
+
+        void writeReward(Reward reward) {
+            String className = SoomlaUtils.getClassName(reward);
+            writeString(className);
+            writeString(reward.getID());
+            writeString(reward.getName());
+            writeString(reward.getDescription());
+
+            Class<?> type = reward.getClass();
+            if (type != BadgeReward.class && type != RandomReward.class && type != SequenceReward.class) {
+                writeByte(0);
+                writeString(reward.toJSONString());
+                return;
+            }
+
+            List<Reward> children = null;
+            if (type == RandomReward.class) {
+                children = ((RandomReward) reward).getRewards();
+            } else if (type == SequenceReward.class) {
+                children = ((SequenceReward) reward).getRewards();
+            }
+            String iconUrl = type == BadgeReward.class ? ((BadgeReward) reward).getIconUrl() : null;
+            Schedule schedule = reward.getSchedule();
+
+            writeByte((schedule != null ? FLAG_SCHEDULE : 0)
+                    | (iconUrl != null ? FLAG_ICON_URL : 0)
+                    | (children != null ? FLAG_CHILDREN : 0));
+            if (schedule != null) {
+                writeSchedule(schedule);
+            }
+            if (iconUrl != null) {
+                writeString(iconUrl);
+            }
+            if (children != null) {
+                writeInt(children.size());
+                for (int i = 0; i < children.size(); i++) {
+                    if (type == RandomReward.class) {
+                        writeDouble(((RandomReward) reward).getWeight(i));
+                    }
+                    writeReward(children.get(i));
+                }
+            }
+        }
+
+        void writeSchedule(Schedule schedule) {
+            writeByte(schedule.getRequiredRecurrence().ordinal());
+            writeInt(schedule.getActivationLimit());
+            CronExpression cron = schedule.getCronRecurrence();
+            writeString(cron != null ? cron.toString() : null);
+            writeInt(schedule.getWindowLimit());
+            writeLong(schedule.getWindowMillis());
+
+            List<Schedule.DateTimeRange> ranges = schedule.getTimeRanges();
+            if (ranges == null) {
+                writeInt(0);
+                return;
+            }
+            writeInt(ranges.size() + 1);
+            for (Schedule.DateTimeRange range : ranges) {
+                writeLong(range.getStartMillis());
+                writeLong(range.getEndMillis() - range.getStartMillis());
+            }
+        }
+
+        void writeString(String string) {
+            if (string == null) {
+                writeInt(0);
+                return;
+            }
+            Integer index = mStringIndex.get(string);
+            if (index == null) {
+                index = mStrings.size();
+                mStrings.add(string);
+                mStringIndex.put(string, index);
+            }
+            writeInt(index + 1);
+        }
+
+        void writeInt(int value) {
+            writeLong(value);
+        }
+
+        void writeLong(long value) {
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                writeByte((int) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            writeByte((int) zigzag);
+        }
+
+        void writeDouble(double value) {
+            long bits = Double.doubleToLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (bits >>> shift));
+            }
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            mBytes[mLength++] = (byte) value;
+        }
+
+        void writeRaw(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBytes, mLength, bytes.length);
+            mLength += bytes.length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mLength + extra > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mLength + extra));
+            }
+        }
+
+        byte[] mBytes = new byte[256];
+        int mLength;
+        final List<String> mStrings = new ArrayList<String>();
+        final Map<String, Integer> mStringIndex = new HashMap<String, Integer>();
+    }
+
+    private static class Decoder {
+
+        Decoder(ByteBuffer buffer) {
+            mBuffer = buffer.slice();
+        }
+
+        /**
+         * Constructor, for a reward inside a catalog that was already read,
+         * and so was already checked.
+         */
+        Decoder(ByteBuffer buffer, String[] strings) {
+            mBuffer = buffer;
+            mStrings = strings;
+            mChecked = true;
+        }
+
+        List<Reward> readCatalog() {
+            byte[] magic = new byte[MAGIC.length];
+            mBuffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IllegalArgumentException("not a reward catalog");
+            }
+            int version = readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IllegalArgumentException("unsupported catalog version " + version);
+            }
+
+            mStrings = new String[readCount()];
+            for (int i = 0; i < mStrings.length; i++) {
+                int length = readCount();
+                if (mBuffer.hasArray()) {
+                    mStrings[i] = new String(mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position(), length, UTF_8);
+                    mBuffer.position(mBuffer.position() + length);
+                } else {
+                    byte[] bytes = new byte[length];
+                    mBuffer.get(bytes);
+                    mStrings[i] = new String(bytes, UTF_8);
+                }
+            }
+
+            int count = readCount();
+            List<Reward> rewards = new ArrayList<Reward>(count);
+            for (int i = 0; i < count; i++) {
+                Reward reward = readReward();
+                if (reward != null) {
+                    rewards.add(reward);
+                }
+            }
+            return rewards;
+        }
+
+        Reward readReward() {
+            String className = readString();
+            String id = readString();
+            String name = readString();
+            String description = readString();
+            int flags = mBuffer.get();
+
+            if (flags == 0 && !isBuiltIn(className)) {
+                String json = readString();
+                if (json == null) {
+                    SoomlaUtils.LogError(TAG, "Unable to load reward " + id + ": it has no JSON");
+                    return null;
+                }
+                try {
+                    return Reward.fromJSONObject(new JSONObject(json));
+                } catch (JSONException e) {
+                    SoomlaUtils.LogError(TAG, "Unable to load reward " + id + ": " + e.getMessage());
+                    return null;
+                }
+            }
+            checkReward(className, id);
+
+            Schedule schedule = (flags & FLAG_SCHEDULE) != 0 ? readSchedule() : null;
+            String iconUrl = (flags & FLAG_ICON_URL) != 0 ? readString() : null;
+            List<Reward> children = null;
+            double[] weights = null;
+            if ((flags & FLAG_CHILDREN) != 0) {
+                // the children are skipped over and created from their offsets when first used,
+                // except the ones stored as JSON or having a registered creator, which are
+                // created now to know if they load
+                int count = readCount();
+                int[] offsets = new int[count];
+                Reward[] loaded = new Reward[count];
+                weights = new double[count];
+                int kept = 0;
+                for (int i = 0; i < count; i++) {
+                    weights[kept] = className.equals("RandomReward") ? mBuffer.getDouble() : RandomReward.DEFAULT_WEIGHT;
+                    offsets[kept] = mBuffer.position();
+                    if (isCreatedNow()) {
+                        loaded[kept] = readReward();
+                        if (loaded[kept] == null) {
+                            continue;
+                        }
+                    } else {
+                        skipReward(!mChecked);
+                    }
+                    kept++;
+                }
+                weights = Arrays.copyOf(weights, kept);
+                children = new LazyChildren(mBuffer, mStrings,
+                        Arrays.copyOf(offsets, kept), Arrays.copyOf(loaded, kept));
+            }
+
+            Reward reward;
+            if (className.equals("BadgeReward")) {
+                reward = new BadgeReward(id, name, iconUrl);
+            } else {
+                if (children == null) {
+                    SoomlaUtils.LogWarning(TAG, "reward has no meaning without children");
+                    children = new ArrayList<Reward>();
+                    weights = new double[0];
+                }
+                if (className.equals("RandomReward")) {
+                    reward = new RandomReward(id, name, children, weights);
+                } else {
+                    reward = new SequenceReward(id, name, children);
+                }
+            }
+            reward.setLoadedState(description, schedule);
+            if (Reward.hasCustomCreator(className)) {
+                // as with JSON catalogs, a registered creator replaces the built-in constructor
+                return Reward.fromJSONObject(reward.toJSONObject());
+            }
+            return reward;
+        }
+
+        /**
+         * Checks if the reward at the current position is created without a built-in
+         * constructor (it's stored as JSON or its class has a registered creator), without moving.
+         */
+        private boolean isCreatedNow() {
+            int position = mBuffer.position();
+            String className = readString();
+            readString();
+            readString();
+            readString();
+            int flags = mBuffer.get();
+            mBuffer.position(position);
+            return (flags == 0 && !isBuiltIn(className)) || Reward.hasCustomCreator(className);
+        }
+
+        /**
+         * Skips over a reward and its children.
+         *
+         * @param check <code>true</code> to fail as <code>readReward</code> would on them,
+         *              so creating them later can't fail
+         */
+        private void skipReward(boolean check) {
+            String className = readString();
+            String id = readString();
+            readString();
+            readString();
+            int flags = mBuffer.get();
+
+            if (flags == 0 && !isBuiltIn(className)) {
+                readString();
+                return;
+            }
+            if (check) {
+                checkReward(className, id);
+            }
+            if ((flags & FLAG_SCHEDULE) != 0 && check) {
+                readSchedule();
+            } else if ((flags & FLAG_SCHEDULE) != 0) {
+                mBuffer.get();
+                readInt();
+                readString();
+                readInt();
+                readLong();
+                for (int i = readCount(); i > 1; i--) {
+                    readLong();
+                    readLong();
+                }
+            }
+            if ((flags & FLAG_ICON_URL) != 0) {
+                readString();
+            }
+            if ((flags & FLAG_CHILDREN) != 0) {
+                for (int i = readCount(); i > 0; i--) {
+                    if ("RandomReward".equals(className)) {
+                        mBuffer.getDouble();
+                    }
+                    skipReward(check);
+                }
+            }
+        }
+
+        private static void checkReward(String className, String id) {
+            if (className == null || id == null || !isBuiltIn(className)) {
+                throw new IllegalArgumentException("invalid reward " + id + " of class " + className);
+            }
+        }
+
+        private Schedule readSchedule() {
+            int recurrence = mBuffer.get();
+            Schedule.Recurrence[] recurrences = Schedule.Recurrence.values();
+            if (recurrence < 0 || recurrence >= recurrences.length) {
+                throw new IllegalArgumentException("invalid recurrence " + recurrence);
+            }
+            int activationLimit = readInt();
+            String cronText = readString();
+            CronExpression cron = null;
+            if (cronText != null) {
+                cron = CronExpression.parse(cronText);
+                if (cron == null) {
+                    throw new IllegalArgumentException("invalid cron expression " + cronText);
+                }
+            }
+            int windowLimit = readInt();
+            long windowMillis = readLong();
+
+            List<Schedule.DateTimeRange> ranges = null;
+            int count = readCount();
+            if (count > 0) {
+                ranges = new ArrayList<Schedule.DateTimeRange>(count - 1);
+                for (int i = 1; i < count; i++) {
+                    long start = readLong();
+                    ranges.add(new Schedule.DateTimeRange(start, start + readLong()));
+                }
+            }
+            return Schedule.intern(new Schedule(ranges, recurrences[recurrence], cron,
+                    activationLimit, windowLimit, windowMillis));
+        }
+
+        private String readString() {
+            int index = readInt();
+            if (index < 0 || index > mStrings.length) {
+                throw new IllegalArgumentException("invalid string index " + index);
+            }
+            return index == 0 ? null : mStrings[index - 1];
+        }
+
+        private int readCount() {
+            int count = readInt();
+            if (count < 0 || count > mBuffer.remaining() + 1) {
+                // every counted item takes at least a byte
+                throw new IllegalArgumentException("invalid count " + count);
+            }
+            return count;
+        }
+
+        private int readInt() {
+            long value = readLong();
+            if (value != (int) value) {
+                throw new IllegalArgumentException("integer out of range " + value);
+            }
+            return (int) value;
+        }
+
+        private long readLong() {
+            long zigzag = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = mBuffer.get();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+
+        private static boolean isBuiltIn(String className) {
+            return "BadgeReward".equals(className) || "RandomReward".equals(className)
+                    || "SequenceReward".equals(className);
+        }
+
+        private final ByteBuffer mBuffer;
+        private String[] mStrings;
+        private boolean mChecked;
+    }
+
+
+    /**
+     * Children of a reward, decoded from their offsets in the catalog when first used.
+     * The catalog was checked when read, so decoding them doesn't fail.
+     */
+    private static class LazyChildren extends LazyRewardList {
+
+        LazyChildren(ByteBuffer buffer, String[] strings, int[] offsets, Reward[] loaded) {
+            super(loaded);
+            mBuffer = buffer;
+            mStrings = strings;
+            mOffsets = offsets;
+        }
+
+        @Override
+        protected Reward load(int index) {
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(mOffsets[index]);
+            try {
+                return new Decoder(buffer, mStrings).readReward();
+            } catch (BufferUnderflowException e) {
+                SoomlaUtils.LogError(TAG, "Unable to read reward: the catalog is truncated");
+            } catch (IllegalArgumentException e) {
+                SoomlaUtils.LogError(TAG, "Unable to read reward: " + e.getMessage());
+            }
+            return null;
+        }
+
+        @Override
+        protected void releaseSources() {
+            mBuffer = null;
+            mStrings = null;
+            mOffsets = null;
+        }
+
+        private ByteBuffer mBuffer;
+        private String[] mStrings;
+        private int[] mOffsets;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA RewardBinaryFormat";
+
+    private static final byte[] MAGIC = { 'S', 'M', 'R', 'C' };
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int FLAG_SCHEDULE = 1;
+    private static final int FLAG_ICON_URL = 2;
+    private static final int FLAG_CHILDREN = 4;
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.rewards;
+
+import com.soomla.SoomlaUtils;
+
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the current catalog of rewards and replaces it at runtime.
+ *
+ * A new catalog is loaded on a background thread and compared with the current one:
+ * rewards loaded from the same JSON as before are kept, so references to them stay valid.
+ * The new catalog is then published at once as an immutable <code>Snapshot</code>.
+ * Readers get the current snapshot without locking, and never see a catalog
+ * that is partly loaded or partly replaced.
+ */
+public class RewardCatalog {
+
+    /**
+     * An immutable view of a catalog of rewards.
+     */
+    public static final class Snapshot {
+
+        private Snapshot(List<Reward> rewards, Map<String, String> sources, long version) {
+            Map<String, Reward> byId = new HashMap<String, Reward>(rewards.size() * 2);
+            for (Reward reward : rewards) {
+                byId.put(reward.getID(), reward);
+            }
+            mRewards = Collections.unmodifiableList(new ArrayList<Reward>(rewards));
+            mRewardsById = byId;
+            mSourcesById = sources;
+            mVersion = version;
+        }
+
+        public List<Reward> getRewards() {
+            return mRewards;
+        }
+
+        /**
+         * Retrieves a reward of the catalog.
+         *
+         * @param rewardId the reward's ID
+         * @return the reward, or <code>null</code> if the catalog has no reward with <code>rewardId</code>
+         */
+        public Reward getReward(String rewardId) {
+            return mRewardsById.get(rewardId);
+        }
+
+        /**
+         * @return the number of catalogs published up to this one, 0 for the initial empty catalog
+         */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        private final List<Reward> mRewards;
+        private final Map<String, Reward> mRewardsById;
+        // the JSON text the rewards were loaded from, for the ones loaded by reload
+        private final Map<String, String> mSourcesById;
+        private final long mVersion;
+    }
+
+    /**
+     * Retrieves the current catalog.
+     *
+     * @return the current catalog, empty until a catalog is published
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Loads a new catalog on a background thread and publishes it.  The current rewards
+     * that were loaded from the same JSON as the new ones are kept instead of the new ones.
+     * Reloads are done one at a time, in the order they were requested.
+     *
+     * @param rewards the JSON representations of the new catalog's rewards
+     * @return the published catalog, or the current one if the new catalog couldn't be loaded
+     */
+    public Future<Snapshot> reload(final JSONArray rewards) {
+        return getReloadExecutor().submit(new Callable<Snapshot>() {
+            @Override
+            public Snapshot call() {
+                List<String> sources = new ArrayList<String>(rewards.length());
+                List<Reward> loaded = RewardCatalogLoader.loadUnregistered(rewards, sources);
+                if (loaded == null) {
+                    SoomlaUtils.LogError(TAG, "Unable to load the new catalog, keeping the current one");
+                    return mSnapshot;
+                }
+                return publish(loaded, sources);
+            }
+        });
+    }
+
+    /**
+     * Publishes a new catalog as it is.  The published rewards and their children are
+     * registered in the <code>EntityRegistry</code>, and the rewards that were removed
+     * or replaced are unregistered with their children.
+     * Use <code>reload</code> to keep the rewards that didn't change.
+     *
+     * @param rewards the new catalog's rewards, which must not be in use elsewhere yet;
+     *                of rewards with the same ID, only the first is published
+     * @return the published catalog
+     */
+    public Snapshot update(List<Reward> rewards) {
+        return publish(rewards, null);
+    }
+
+    /**
+     * Publishes a new catalog.  Rewards of the new catalog that were loaded from the same
+     * JSON as the current catalog's rewards with the same IDs are replaced by the current ones.
+     * The rewards are matched without holding the lock; if another catalog is published
+     * meanwhile, they're matched again against it.
+     *
+     * @param rewards the new catalog's rewards
+     * @param sources the JSON text each reward was loaded from, or <code>null</code>
+     * @return the published catalog
+     */
+    private Snapshot publish(List<Reward> rewards, List<String> sources) {
+        // of rewards with the same ID, the first is kept, as the lookup by ID would
+        Set<String> ids = new HashSet<String>(rewards.size() * 2);
+        List<Reward> unique = new ArrayList<Reward>(rewards.size());
+        List<String> uniqueSources = sources != null ? new ArrayList<String>(rewards.size()) : null;
+        for (int i = 0; i < rewards.size(); i++) {
+            Reward reward = rewards.get(i);
+            if (!ids.add(reward.getID())) {
+                SoomlaUtils.LogError(TAG, "The new catalog has more than one reward with ID "
+                        + reward.getID() + ", keeping the first one");
+                continue;
+            }
+            unique.add(reward);
+            if (sources != null) {
+                uniqueSources.add(sources.get(i));
+            }
+        }
+        rewards = unique;
+        sources = uniqueSources;
+
+        while (true) {
+            Snapshot current = mSnapshot;
+            List<Reward> merged = new ArrayList<Reward>(rewards.size());
+            Map<String, String> mergedSources = new HashMap<String, String>(sources != null ? rewards.size() * 2 : 0);
+            int kept = 0;
+            for (int i = 0; i < rewards.size(); i++) {
+                Reward reward = rewards.get(i);
+                String source = sources != null ? sources.get(i) : null;
+                Reward old = current.getReward(reward.getID());
+                if (source != null && old != null && old.getClass() == reward.getClass()
+                        && source.equals(current.mSourcesById.get(old.getID()))) {
+                    merged.add(old);
+                    kept++;
+                } else {
+                    merged.add(reward);
+                }
+                if (source != null) {
+                    mergedSources.put(reward.getID(), source);
+                }
+            }
+            Snapshot snapshot = new Snapshot(merged, mergedSources, current.getVersion() + 1);
+
+            synchronized (this) {
+                if (mSnapshot != current) {
+                    continue;
+                }
+                mSnapshot = snapshot;
+
+                Set<Reward> published = Collections.newSetFromMap(new IdentityHashMap<Reward, Boolean>());
+                for (Reward reward : merged) {
+                    Reward.registerTree(reward);
+                    Reward.collectTree(reward, published);
+                }
+                // the removed and replaced rewards, and their children that aren't
+                // in the new catalog, unless another entity was registered in their place
+                for (Reward old : current.getRewards()) {
+                    Reward.unregisterTree(old, published);
+                }
+            }
+
+            SoomlaUtils.LogDebug(TAG, "Published catalog version " + snapshot.getVersion() + ": "
+                    + merged.size() + " rewards, " + kept + " unchanged");
+            return snapshot;
+        }
+    }
+
+    private static synchronized ExecutorService getReloadExecutor() {
+        if (sReloadExecutor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "SOOMLA RewardCatalog");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            sReloadExecutor = pool;
+        }
+        return sReloadExecutor;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA RewardCatalog";
+
+    private static ExecutorService sReloadExecutor;
+
+    private volatile Snapshot mSnapshot = new Snapshot(Collections.<Reward>emptyList(),
+            Collections.<String, String>emptyMap(), 0);
+}
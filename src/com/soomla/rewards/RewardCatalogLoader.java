@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.rewards;
+
+import com.soomla.SoomlaUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads catalogs of rewards from their JSON, splitting large catalogs into
+ * chunks that are loaded concurrently, one thread per core.
+ */
+public class RewardCatalogLoader {
+
+    /**
+     * Loads a catalog of rewards, as <code>Reward.fromJSONObject</code> on each element
+     * of <code>rewards</code>, in order.  Rewards that fail to load are skipped.
+     * The loaded rewards and their children are registered in the <code>EntityRegistry</code>.
+     *
+     * @param rewards the JSON representations of the rewards
+     * @return the loaded rewards, in the order of <code>rewards</code>,
+     * or <code>null</code> if loading was interrupted or failed
+     */
+    public static List<Reward> load(JSONArray rewards) {
+        List<Reward> loaded = loadUnregistered(rewards, null);
+        if (loaded != null) {
+            for (Reward reward : loaded) {
+                Reward.registerTree(reward);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Loads a catalog of rewards as <code>load</code> does, without registering them.
+     *
+     * @param rewards the JSON representations of the rewards
+     * @param sources receives the JSON text of each loaded reward, in the order of
+     *                the returned rewards, or <code>null</code> if not needed
+     */
+    static List<Reward> loadUnregistered(final JSONArray rewards, List<String> sources) {
+        int length = rewards.length();
+        List<Reward> loaded = new ArrayList<Reward>(length);
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        if (length < PARALLEL_THRESHOLD || threads == 1) {
+            loadRange(rewards, 0, length, loaded, sources);
+            return loaded;
+        }
+
+        // a few chunks per thread, so a chunk of heavy rewards doesn't hold back the others
+        int chunk = Math.max(MIN_CHUNK, length / (threads * 4) + 1);
+        final boolean withSources = sources != null;
+        List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+        for (int from = 0; from < length; from += chunk) {
+            final int start = from;
+            final int end = Math.min(length, from + chunk);
+            tasks.add(new Callable<Chunk>() {
+                @Override
+                public Chunk call() {
+                    Chunk part = new Chunk(end - start, withSources);
+                    loadRange(rewards, start, end, part.mRewards, part.mSources);
+                    return part;
+                }
+            });
+        }
+
+        try {
+            for (Future<Chunk> result : getExecutor().invokeAll(tasks)) {
+                Chunk part = result.get();
+                loaded.addAll(part.mRewards);
+                if (withSources) {
+                    sources.addAll(part.mSources);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            SoomlaUtils.LogError(TAG, "Interrupted while loading rewards. " + e.getMessage());
+            return null;
+        } catch (ExecutionException e) {
+            SoomlaUtils.LogError(TAG, "An error occurred while loading rewards. " + e.getCause());
+            return null;
+        }
+        return loaded;
+    }
+
+    private static void loadRange(JSONArray rewards, int from, int to, List<Reward> out, List<String> sources) {
+        for (int i = from; i < to; i++) {
+            JSONObject rewardJSON = rewards.optJSONObject(i);
+            if (rewardJSON == null) {
+                SoomlaUtils.LogError(TAG, "Reward at " + i + " is not a JSON object");
+                continue;
+            }
+            Reward reward = Reward.fromJSONObject(rewardJSON);
+            if (reward != null) {
+                out.add(reward);
+                if (sources != null) {
+                    sources.add(rewardJSON.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * The rewards loaded by one task, and their sources.
+     */
+    private static class Chunk {
+
+        Chunk(int size, boolean withSources) {
+            mRewards = new ArrayList<Reward>(size);
+            mSources = withSources ? new ArrayList<String>(size) : null;
+        }
+
+        final List<Reward> mRewards;
+        final List<String> mSources;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "SOOMLA RewardCatalogLoader");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            sExecutor = pool;
+        }
+        return sExecutor;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA RewardCatalogLoader";
+
+    private static final int PARALLEL_THRESHOLD = 256;
+    private static final int MIN_CHUNK = 64;
+
+    private static ExecutorService sExecutor;
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.rewards;
+
+import com.soomla.Clock;
+import com.soomla.Schedule;
+import com.soomla.data.RewardStorage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Keeps track of which rewards in a set can be given right now.
+ *
+ * A reward is evaluated when it's added, whenever its state (or the state of one
+ * of its rewards, for rewards made of others) changes in <code>RewardStorage</code>,
+ * and when its schedule might change its approval.  Listing the eligible rewards
+ * is then a read of a set, instead of a storage read and a schedule evaluation per reward.
+ *
+ * A reward is eligible if it can be given and giving it would succeed: a reward
+ * needs a schedule that approves it, a <code>SequenceReward</code> needs rewards
+ * left to give, and a <code>RandomReward</code> needs a reward that can be given.
+ * Rewards are evaluated without holding the index's lock.
+ *
+ * Call <code>release</code> when done with the index.
+ */
+public class RewardEligibilityIndex implements RewardStorage.StateListener {
+
+    /**
+     * Constructor
+     *
+     * @param rewards the rewards to index
+     */
+    public RewardEligibilityIndex(Collection<? extends Reward> rewards) {
+        synchronized (this) {
+            for (Reward reward : rewards) {
+                mRewards.put(reward.getID(), reward);
+            }
+        }
+        evaluate(new ArrayList<Reward>(rewards), currentTimeMillis());
+        RewardStorage.addStateListener(this);
+    }
+
+    /**
+     * Adds a reward to the index.
+     *
+     * @param reward the reward to add
+     */
+    public void add(Reward reward) {
+        synchronized (this) {
+            mRewards.put(reward.getID(), reward);
+        }
+        evaluate(Collections.singletonList(reward), currentTimeMillis());
+    }
+
+    /**
+     * Removes a reward from the index.
+     *
+     * @param reward the reward to remove
+     */
+    public synchronized void remove(Reward reward) {
+        String rewardId = reward.getID();
+        mRewards.remove(rewardId);
+        mEligible.remove(reward);
+        mScheduled.remove(rewardId);
+        mGenerations.remove(rewardId);
+        setChildren(rewardId, Collections.<String>emptySet());
+    }
+
+    /**
+     * Retrieves the rewards that can be given right now.
+     *
+     * @return a snapshot of the eligible rewards
+     */
+    public Set<Reward> getEligibleRewards() {
+        refresh();
+        synchronized (this) {
+            return new LinkedHashSet<Reward>(mEligible);
+        }
+    }
+
+    /**
+     * Checks if the given reward can be given right now,
+     * according to the index.
+     *
+     * @param rewardId the reward to check
+     * @return <code>true</code> if the reward is indexed and can be given,
+     * <code>false</code> otherwise
+     */
+    public boolean isEligible(String rewardId) {
+        refresh();
+        synchronized (this) {
+            Reward reward = mRewards.get(rewardId);
+            return reward != null && mEligible.contains(reward);
+        }
+    }
+
+    /**
+     * Stops listening to reward state changes.
+     * The index can't be used after this call.
+     */
+    public void release() {
+        RewardStorage.removeStateListener(this);
+        synchronized (this) {
+            mRewards.clear();
+            mEligible.clear();
+            mBoundaries.clear();
+            mScheduled.clear();
+            mGenerations.clear();
+            mParents.clear();
+            mChildren.clear();
+        }
+    }
+
+    @Override
+    public void onRewardStateChanged(String rewardId) {
+        List<Reward> affected = new ArrayList<Reward>();
+        synchronized (this) {
+            Reward reward = mRewards.get(rewardId);
+            if (reward != null) {
+                affected.add(reward);
+            }
+            Set<String> parents = mParents.get(rewardId);
+            if (parents != null) {
+                for (String parentId : parents) {
+                    Reward parent = mRewards.get(parentId);
+                    if (parent != null && parent != reward) {
+                        affected.add(parent);
+                    }
+                }
+            }
+        }
+        if (!affected.isEmpty()) {
+            evaluate(affected, currentTimeMillis());
+        }
+    }
+
+    /**
+     * Re-evaluates all rewards whose schedule boundary has passed.
+     */
+    private void refresh() {
+        long now = currentTimeMillis();
+        List<Reward> due = new ArrayList<Reward>();
+        synchronized (this) {
+            while (!mBoundaries.isEmpty() && mBoundaries.peek().mTime <= now) {
+                Boundary boundary = mBoundaries.poll();
+                String rewardId = boundary.mReward.getID();
+                Long scheduled = mScheduled.get(rewardId);
+                if (scheduled != null && scheduled == boundary.mTime && mRewards.get(rewardId) == boundary.mReward) {
+                    mScheduled.remove(rewardId);
+                    due.add(boundary.mReward);
+                }
+            }
+        }
+        if (!due.isEmpty()) {
+            evaluate(due, now);
+        }
+    }
+
+    /**
+     * Evaluates the given rewards without holding the lock, then applies the results
+     * of the rewards that are still indexed and weren't evaluated again meanwhile.
+     */
+    private void evaluate(List<Reward> rewards, long now) {
+        long[] generations = new long[rewards.size()];
+        synchronized (this) {
+            for (int i = 0; i < generations.length; i++) {
+                generations[i] = ++mGeneration;
+                mGenerations.put(rewards.get(i).getID(), generations[i]);
+            }
+        }
+
+        boolean[] eligible = new boolean[generations.length];
+        long[] next = new long[generations.length];
+        List<Set<String>> children = new ArrayList<Set<String>>(generations.length);
+        for (int i = 0; i < generations.length; i++) {
+            Reward reward = rewards.get(i);
+            eligible[i] = isEligible(reward);
+            next[i] = nextEvaluationTime(reward, now);
+            children.add(childIds(reward));
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < generations.length; i++) {
+                Reward reward = rewards.get(i);
+                String rewardId = reward.getID();
+                Long generation = mGenerations.get(rewardId);
+                if (mRewards.get(rewardId) != reward || generation == null || generation != generations[i]) {
+                    continue;
+                }
+                if (eligible[i]) {
+                    mEligible.add(reward);
+                } else {
+                    mEligible.remove(reward);
+                }
+                setChildren(rewardId, children.get(i));
+
+                // keep only the earliest boundary of each reward, stale entries are skipped in refresh
+                Long scheduled = mScheduled.get(rewardId);
+                if (next[i] != Long.MAX_VALUE && (scheduled == null || next[i] < scheduled)) {
+                    mScheduled.put(rewardId, next[i]);
+                    mBoundaries.add(new Boundary(next[i], reward));
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates which rewards the given reward is made of, so it's evaluated when they change.
+     */
+    private void setChildren(String parentId, Set<String> childIds) {
+        Set<String> previous = mChildren.remove(parentId);
+        if (previous != null) {
+            for (String childId : previous) {
+                Set<String> parents = mParents.get(childId);
+                if (parents != null && parents.remove(parentId) && parents.isEmpty()) {
+                    mParents.remove(childId);
+                }
+            }
+        }
+        if (childIds.isEmpty()) {
+            return;
+        }
+        mChildren.put(parentId, childIds);
+        for (String childId : childIds) {
+            Set<String> parents = mParents.get(childId);
+            if (parents == null) {
+                parents = new HashSet<String>(2);
+                mParents.put(childId, parents);
+            }
+            parents.add(parentId);
+        }
+    }
+
+    private static boolean isEligible(Reward reward) {
+        // a reward without a schedule can't be given
+        if (reward.getSchedule() == null || !reward.canGive()) {
+            return false;
+        }
+        if (reward instanceof SequenceReward) {
+            return ((SequenceReward) reward).hasMoreToGive();
+        }
+        if (reward instanceof RandomReward) {
+            return ((RandomReward) reward).hasRewardToGive();
+        }
+        return true;
+    }
+
+    private static Set<String> childIds(Reward reward) {
+        List<Reward> children = reward instanceof RandomReward || reward instanceof SequenceReward
+                ? reward.getChildRewards() : null;
+        if (children == null || children.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> ids = new HashSet<String>(children.size() * 2);
+        for (int i = 0; i < children.size(); i++) {
+            ids.add(children.get(i).getID());
+        }
+        return ids;
+    }
+
+    /**
+     * Finds the next time the given reward's approval may change with time alone:
+     * when its schedule's approval changes (regardless of activation limits, which
+     * change only with the reward's state), or when a rolling window frees a slot.
+     * For a <code>RandomReward</code>, also when any of its rewards' approval may change.
+     */
+    private static long nextEvaluationTime(Reward reward, long now) {
+        long next = ownEvaluationTime(reward, now);
+        if (reward instanceof RandomReward) {
+            List<Reward> children = reward.getChildRewards();
+            for (int i = 0; children != null && i < children.size(); i++) {
+                next = Math.min(next, ownEvaluationTime(children.get(i), now));
+            }
+        }
+        return next;
+    }
+
+    private static long ownEvaluationTime(Reward reward, long now) {
+        Schedule schedule = reward.getSchedule();
+        if (schedule == null) {
+            return Long.MAX_VALUE;
+        }
+        long next = schedule.nextChangeTime(now);
+        long slot = reward.getNextWindowSlotTime(now);
+        return slot > now ? Math.min(next, slot) : next;
+    }
+
+    private static long currentTimeMillis() {
+        return Clock.getDefault().currentTimeMillis();
+    }
+
+    private static class Boundary {
+        Boundary(long time, Reward reward) {
+            mTime = time;
+            mReward = reward;
+        }
+
+        final long mTime;
+        final Reward mReward;
+    }
+
+
+    /** Private Members **/
+
+    private final Map<String, Reward> mRewards = new HashMap<String, Reward>();
+    private final Set<Reward> mEligible = new LinkedHashSet<Reward>();
+    private final Map<String, Long> mScheduled = new HashMap<String, Long>();
+    private final Map<String, Long> mGenerations = new HashMap<String, Long>();
+    private final Map<String, Set<String>> mParents = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> mChildren = new HashMap<String, Set<String>>();
+    private long mGeneration;
+    private final PriorityQueue<Boundary> mBoundaries = new PriorityQueue<Boundary>(16, new Comparator<Boundary>() {
+        @Override
+        public int compare(Boundary lhs, Boundary rhs) {
+            return lhs.mTime < rhs.mTime ? -1 : (lhs.mTime == rhs.mTime ? 0 : 1);
+        }
+    });
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.rewards;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.data.RewardHandle;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled form of a tree of nested rewards (<code>RandomReward</code>s and
+ * <code>SequenceReward</code>s holding other rewards).
+ *
+ * The tree is flattened into arrays: every reward is a node, and the children
+ * of a node are a range in a single array of node indices.  Storage handles
+ * are resolved when compiling, and the tree is checked for cycles and depth.
+ * <code>give</code> and <code>take</code> then walk the tree iteratively, with
+ * the same results as <code>Reward.give</code> and <code>Reward.take</code> on the root.
+ *
+ * NOTE: the graph doesn't follow changes made to the rewards' lists after compiling,
+ * compile again in that case.
+ */
+public class RewardGraph {
+
+    public static final int MAX_DEPTH = 32;
+
+    /**
+     * Compiles the given reward and all rewards nested in it.
+     *
+     * @param root the reward to compile
+     * @return the compiled graph, or <code>null</code> if the rewards contain
+     * a cycle or are nested deeper than <code>MAX_DEPTH</code>
+     */
+    public static RewardGraph compile(Reward root) {
+        if (root == null) {
+            return null;
+        }
+
+        RewardGraph graph = new RewardGraph();
+        if (graph.addNode(root, new IdentityHashMap<Reward, Boolean>(), 1) < 0) {
+            return null;
+        }
+        graph.seal();
+        return graph;
+    }
+
+    /**
+     * Gives the root reward, see <code>Reward.give</code>.
+     *
+     * @return if the reward was actually given
+     */
+    public boolean give() {
+        int[] path = new int[mMaxDepth];
+        int depth = 0;
+        path[0] = ROOT;
+        if (!mNodes[ROOT].canGive()) {
+            SoomlaUtils.LogDebug(TAG, "(Give) Reward is not approved by Schedule. id: " + mNodes[ROOT].getID());
+            return false;
+        }
+
+        // Walk down the picked rewards.  When a node fails, its parent still
+        // counts as given (a RandomReward doesn't depend on the result of its pick).
+        boolean failed;
+        while (true) {
+            int node = path[depth];
+            if (mKinds[node] == KIND_RANDOM) {
+                RandomReward random = (RandomReward) mNodes[node];
+                int picked = random.pickRewardIndex();
+                if (picked < 0) {
+                    SoomlaUtils.LogDebug(TAG, "No more rewards to give in this Random Reward: " + random.getID());
+                    failed = true;
+                    break;
+                }
+                int child = mChildren[mChildStart[node] + picked];
+                random.setLastGivenReward(mNodes[child]);
+                if (!mNodes[child].canGive()) {
+                    failed = false;
+                    break;
+                }
+                path[++depth] = child;
+            } else {
+                failed = !mNodes[node].giveInner();
+                break;
+            }
+        }
+
+        if (failed) {
+            if (depth == 0) {
+                return false;
+            }
+            depth--;
+        }
+        for (int d = depth; d >= 0; d--) {
+            mHandles[path[d]].setRewardStatus(true);
+        }
+        return true;
+    }
+
+    /**
+     * Takes the root reward, see <code>Reward.take</code>.
+     *
+     * @return if the reward was actually taken
+     */
+    public boolean take() {
+        int[] path = new int[mMaxDepth];
+        int depth = 0;
+        path[0] = ROOT;
+
+        // a RandomReward is taken only if its last given reward is taken
+        while (true) {
+            int node = path[depth];
+            if (!mHandles[node].isRewardGiven()) {
+                SoomlaUtils.LogDebug(TAG, "Reward not given. id: " + mNodes[node].getID());
+                return false;
+            }
+            if (mKinds[node] == KIND_RANDOM) {
+                RandomReward random = (RandomReward) mNodes[node];
+                Reward last = random.getLastGivenReward();
+                random.setLastGivenReward(null);
+                Integer child = last != null ? mNodeIdx.get(last) : null;
+                if (child == null) {
+                    return false;
+                }
+                path[++depth] = child;
+            } else {
+                if (!mNodes[node].takeInner()) {
+                    return false;
+                }
+                break;
+            }
+        }
+
+        for (int d = depth; d >= 0; d--) {
+            mHandles[path[d]].setRewardStatus(false);
+        }
+        return true;
+    }
+
+    /** Setters and Getters **/
+
+    public Reward getRoot() {
+        return mNodes[ROOT];
+    }
+
+    public int getNodeCount() {
+        return mNodes.length;
+    }
+
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    private RewardGraph() {
+    }
+
+    /**
+     * Adds the given reward and its children (depth first), returns the reward's node index,
+     * or -1 if it's invalid.
+     */
+    private int addNode(Reward reward, Map<Reward, Boolean> visiting, int depth) {
+        Integer existing = mNodeIdx.get(reward);
+        if (existing != null) {
+            // shared by several parents, which is fine as long as it's not its own ancestor
+            if (visiting.containsKey(reward)) {
+                SoomlaUtils.LogError(TAG, "Reward " + reward.getID() + " contains itself");
+                return -1;
+            }
+            int deepest = depth + mHeightList.get(existing) - 1;
+            if (deepest > MAX_DEPTH) {
+                SoomlaUtils.LogError(TAG, "Rewards are nested deeper than " + MAX_DEPTH + " under " + reward.getID());
+                return -1;
+            }
+            mMaxDepth = Math.max(mMaxDepth, deepest);
+            return existing;
+        }
+        if (depth > MAX_DEPTH) {
+            SoomlaUtils.LogError(TAG, "Rewards are nested deeper than " + MAX_DEPTH + " at " + reward.getID());
+            return -1;
+        }
+        mMaxDepth = Math.max(mMaxDepth, depth);
+
+        int node = mNodeList.size();
+        mNodeIdx.put(reward, node);
+        mNodeList.add(reward);
+        mChildList.add(null);
+        mHeightList.add(1);
+
+        List<Reward> children = null;
+        if (reward instanceof RandomReward) {
+            mKindList.add(KIND_RANDOM);
+            children = ((RandomReward) reward).getRewards();
+        } else if (reward instanceof SequenceReward) {
+            mKindList.add(KIND_SEQUENCE);
+            children = ((SequenceReward) reward).getRewards();
+        } else {
+            mKindList.add(KIND_LEAF);
+        }
+
+        int[] childIdx = new int[children != null ? children.size() : 0];
+        int height = 1;
+        if (children != null) {
+            visiting.put(reward, Boolean.TRUE);
+            for (int i = 0; i < childIdx.length; i++) {
+                childIdx[i] = addNode(children.get(i), visiting, depth + 1);
+                if (childIdx[i] < 0) {
+                    return -1;
+                }
+                height = Math.max(height, 1 + mHeightList.get(childIdx[i]));
+            }
+            visiting.remove(reward);
+        }
+        mChildList.set(node, childIdx);
+        mHeightList.set(node, height);
+        return node;
+    }
+
+    private void seal() {
+        int count = mNodeList.size();
+        mNodes = mNodeList.toArray(new Reward[count]);
+        mHandles = new RewardHandle[count];
+        mKinds = new int[count];
+        mChildStart = new int[count];
+        mChildCount = new int[count];
+
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            mHandles[i] = mNodes[i].getStorageHandle();
+            mKinds[i] = mKindList.get(i);
+            mChildStart[i] = total;
+            mChildCount[i] = mChildList.get(i).length;
+            total += mChildCount[i];
+        }
+        mChildren = new int[total];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(mChildList.get(i), 0, mChildren, mChildStart[i], mChildCount[i]);
+        }
+
+        mNodeList = null;
+        mKindList = null;
+        mChildList = null;
+        mHeightList = null;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA RewardGraph";
+
+    private static final int ROOT = 0;
+
+    private static final int KIND_LEAF = 0;
+    private static final int KIND_RANDOM = 1;
+    private static final int KIND_SEQUENCE = 2;
+
+    private Reward[] mNodes;
+    private RewardHandle[] mHandles;
+    private int[] mKinds;
+    private int[] mChildStart;
+    private int[] mChildCount;
+    private int[] mChildren;
+    private int mMaxDepth;
+    private final Map<Reward, Integer> mNodeIdx = new IdentityHashMap<Reward, Integer>();
+
+    // used only while compiling
+    private List<Reward> mNodeList = new ArrayList<Reward>();
+    private List<Integer> mKindList = new ArrayList<Integer>();
+    private List<int[]> mChildList = new ArrayList<int[]>();
+    private List<Integer> mHeightList = new ArrayList<Integer>();
+}
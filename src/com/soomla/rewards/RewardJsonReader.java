@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.rewards;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.data.JSONConsts;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loads rewards from a JSON stream, building them directly from the tokens
+ * instead of parsing the whole catalog into <code>JSONObject</code>s first.
+ * The result is the same as <code>Reward.fromJSONObject</code> on each reward.
+ *
+ * <code>BadgeReward</code>, <code>RandomReward</code> and <code>SequenceReward</code>
+ * are built from the stream.  Other reward classes are collected into a
+ * <code>JSONObject</code> (just their own subtree) and created by <code>Reward.fromJSONObject</code>.
+ */
+public class RewardJsonReader {
+
+    /**
+     * Reads a catalog of rewards: either a JSON array of rewards or a single reward object.
+     * Rewards that fail to load are skipped, as when loading them from <code>JSONObject</code>s.
+     * The loaded rewards and their children are registered in the <code>EntityRegistry</code>.
+     *
+     * @param in the JSON stream, closed when done
+     * @return the loaded rewards, or <code>null</code> if the stream is not valid JSON
+     */
+    public static List<Reward> readRewards(Reader in) {
+        JsonReader reader = new JsonReader(in);
+        try {
+            List<Reward> rewards = new ArrayList<Reward>();
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                for (int i = 0; reader.hasNext(); i++) {
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        // as a catalog loaded from a JSONArray
+                        reader.skipValue();
+                        SoomlaUtils.LogError(TAG, "Reward at " + i + " is not a JSON object");
+                        continue;
+                    }
+                    addIfLoaded(rewards, readReward(reader));
+                }
+                reader.endArray();
+            } else {
+                addIfLoaded(rewards, readReward(reader));
+            }
+            for (Reward reward : rewards) {
+                Reward.registerTree(reward);
+            }
+            return rewards;
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Unable to read rewards: " + e.getMessage());
+        } catch (IllegalStateException e) {
+            // the stream is valid JSON but not a catalog (e.g. a number where an object is expected)
+            SoomlaUtils.LogError(TAG, "Unexpected JSON structure: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            SoomlaUtils.LogError(TAG, "Unexpected JSON value: " + e.getMessage());
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a single reward from a JSON stream, positioned at the reward's object.
+     *
+     * @param reader the JSON stream
+     * @return the reward, or <code>null</code> if it couldn't be created
+     * @throws IOException if the stream can't be read or is not valid JSON
+     */
+    public static Reward readReward(JsonReader reader) throws IOException {
+        return readEntity(reader).create();
+    }
+
+    private static Entity readEntity(JsonReader reader) throws IOException {
+        Entity entity = new Entity();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                // as optX on a JSON null
+                reader.skipValue();
+                entity.putExtra(name, JSONObject.NULL);
+            } else if (name.equals(JSONConsts.SOOM_ENTITY_ID)) {
+                entity.mId = readString(reader);
+            } else if (name.equals(JSONConsts.SOOM_ENTITY_NAME)) {
+                entity.mName = readString(reader);
+            } else if (name.equals(JSONConsts.SOOM_ENTITY_DESCRIPTION)) {
+                entity.mDescription = readString(reader);
+            } else if (name.equals(JSONConsts.SOOM_CLASSNAME)) {
+                entity.mClassName = readString(reader);
+            } else if (name.equals(JSONConsts.SOOM_REWARD_ICONURL)) {
+                entity.mIconUrl = readString(reader);
+            } else if (name.equals(JSONConsts.SOOM_REWARD_WEIGHT)) {
+                entity.mWeight = readDouble(reader, RandomReward.DEFAULT_WEIGHT);
+            } else if (name.equals(JSONConsts.SOOM_SCHEDULE)) {
+                // kept as is for other reward classes, see Reward(JSONObject)
+                Object schedule = readValue(reader);
+                entity.mSchedule = schedule instanceof JSONObject ? (JSONObject) schedule : null;
+                entity.putExtra(name, schedule);
+            } else if (name.equals(JSONConsts.SOOM_REWARDS) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                entity.mChildren = new ArrayList<Entity>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        entity.mChildren.add(readEntity(reader));
+                    } else {
+                        reader.skipValue();
+                        entity.mError = "A reward in " + JSONConsts.SOOM_REWARDS + " is not an object";
+                    }
+                }
+                reader.endArray();
+            } else {
+                entity.putExtra(name, readValue(reader));
+            }
+        }
+        reader.endObject();
+        return entity;
+    }
+
+    /**
+     * Reads any value as a string, as <code>JSONObject.getString</code> does,
+     * so a value of an unexpected type doesn't stop the stream.
+     */
+    private static String readString(JsonReader reader) throws IOException {
+        return readValue(reader).toString();
+    }
+
+    /**
+     * Reads a number, or a string holding one, as <code>JSONObject.optDouble</code> does.
+     *
+     * @param fallback the value returned when the value is not a number
+     */
+    private static double readDouble(JsonReader reader, double fallback) throws IOException {
+        Object value = readValue(reader);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Double.valueOf((String) value);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return fallback;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    putQuietly(object, name, readValue(reader));
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                String number = reader.nextString();
+                try {
+                    return Long.valueOf(number);
+                } catch (NumberFormatException e) {
+                    return Double.valueOf(number);
+                }
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    private static void putQuietly(JSONObject object, String name, Object value) {
+        try {
+            object.put(name, value);
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Unable to keep value of " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static void addIfLoaded(List<Reward> rewards, Reward reward) {
+        if (reward != null) {
+            rewards.add(reward);
+        }
+    }
+
+    /**
+     * The fields of a reward as read from the stream.
+     */
+    private static class Entity {
+
+        Reward create() {
+            if (mError != null) {
+                SoomlaUtils.LogError(TAG, "Unable to load reward " + mId + ": " + mError);
+                return null;
+            }
+            if (mClassName == null || mId == null) {
+                SoomlaUtils.LogError(TAG, "fromJSONObject JSONException: reward is missing its "
+                        + (mClassName == null ? JSONConsts.SOOM_CLASSNAME : JSONConsts.SOOM_ENTITY_ID));
+                return null;
+            }
+
+            Reward reward;
+            if (mClassName.equals("BadgeReward")) {
+                if (mIconUrl == null) {
+                    SoomlaUtils.LogError(TAG, "An error occurred while generating JSON object.");
+                }
+                reward = new BadgeReward(mId, mName, mIconUrl);
+            } else if (mClassName.equals("RandomReward")) {
+                List<Reward> rewards = new ArrayList<Reward>();
+                double[] weights = createChildren(rewards);
+                reward = new RandomReward(mId, mName, rewards, Arrays.copyOf(weights, rewards.size()));
+            } else if (mClassName.equals("SequenceReward")) {
+                List<Reward> rewards = new ArrayList<Reward>();
+                createChildren(rewards);
+                reward = new SequenceReward(mId, mName, rewards);
+            } else {
+                return Reward.fromJSONObject(toJSONObject());
+            }
+            // as Reward(JSONObject)
+            reward.setLoadedState(mDescription, mSchedule != null ? Reward.scheduleFromJSON(mId, mSchedule) : null);
+            return reward;
+        }
+
+        private double[] createChildren(List<Reward> rewards) {
+            if (mChildren == null) {
+                SoomlaUtils.LogWarning(TAG, "reward has no meaning without children");
+                return new double[0];
+            }
+            double[] weights = new double[mChildren.size()];
+            for (Entity child : mChildren) {
+                Reward reward = child.create();
+                if (reward != null) {
+                    weights[rewards.size()] = child.mWeight;
+                    rewards.add(reward);
+                }
+            }
+            return weights;
+        }
+
+        /**
+         * Rebuilds the JSON of a reward the reader doesn't know how to create.
+         */
+        private JSONObject toJSONObject() {
+            JSONObject json = mExtras != null ? mExtras : new JSONObject();
+            putQuietly(json, JSONConsts.SOOM_ENTITY_ID, mId);
+            putQuietly(json, JSONConsts.SOOM_CLASSNAME, mClassName);
+            if (mName != null) {
+                putQuietly(json, JSONConsts.SOOM_ENTITY_NAME, mName);
+            }
+            if (mDescription != null) {
+                putQuietly(json, JSONConsts.SOOM_ENTITY_DESCRIPTION, mDescription);
+            }
+            if (mIconUrl != null) {
+                putQuietly(json, JSONConsts.SOOM_REWARD_ICONURL, mIconUrl);
+            }
+            if (mChildren != null) {
+                JSONArray children = new JSONArray();
+                for (Entity child : mChildren) {
+                    JSONObject childJson = child.toJSONObject();
+                    if (child.mWeight != RandomReward.DEFAULT_WEIGHT) {
+                        putQuietly(childJson, JSONConsts.SOOM_REWARD_WEIGHT, child.mWeight);
+                    }
+                    children.put(childJson);
+                }
+                putQuietly(json, JSONConsts.SOOM_REWARDS, children);
+            }
+            return json;
+        }
+
+        void putExtra(String name, Object value) {
+            if (mExtras == null) {
+                mExtras = new JSONObject();
+            }
+            putQuietly(mExtras, name, value);
+        }
+
+        String mId;
+        String mName = "";
+        String mDescription = "";
+        String mClassName;
+        String mIconUrl;
+        double mWeight = RandomReward.DEFAULT_WEIGHT;
+        JSONObject mSchedule;
+        List<Entity> mChildren;
+        JSONObject mExtras;
+        String mError;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA RewardJsonReader";
+}
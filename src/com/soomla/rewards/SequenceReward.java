@@ -18,7 +18,7 @@ package com.soomla.rewards;
 
 
 import com.soomla.SoomlaUtils;
-import com.soomla.data.RewardStorage;
+import com.soomla.util.JSONCreatable;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -35,6 +35,7 @@ import java.util.List;
  *
  * Created by refaelos on 13/05/14.
  */
+@JSONCreatable
 public class SequenceReward extends Reward {
 
     /**
@@ -53,7 +54,7 @@ public class SequenceReward extends Reward {
             SoomlaUtils.LogError(TAG, error);
         }
 
-        mRewards = rewards;
+        mRewards = rewards != null ? StampedRewardList.wrap(rewards, null) : null;
     }
 
     /**
@@ -66,20 +67,41 @@ public class SequenceReward extends Reward {
     public SequenceReward(JSONObject jsonObject) throws JSONException {
         super(jsonObject);
 
-        mRewards = new ArrayList<Reward>();
         JSONArray rewardsArr = jsonObject.optJSONArray(com.soomla.data.JSONConsts.SOOM_REWARDS);
         if (rewardsArr == null) {
             SoomlaUtils.LogWarning(TAG, "reward has no meaning without children");
             rewardsArr = new JSONArray();
         }
 
+        // the rewards are created from their JSON when first used
+        JSONObject[] rewardsJSON = new JSONObject[rewardsArr.length()];
         for(int i=0; i<rewardsArr.length(); i++) {
-            JSONObject rewardJSON = rewardsArr.getJSONObject(i);
-            Reward reward = fromJSONObject(rewardJSON);
-            if (reward != null) {
-                mRewards.add(reward);
+            rewardsJSON[i] = rewardsArr.getJSONObject(i);
+        }
+        mRewards = StampedRewardList.wrap(
+                LazyRewardList.ofJSON(rewardsJSON, new ArrayList<JSONObject>(rewardsJSON.length)), null);
+    }
+
+    /**
+     * Copy constructor, see <code>SoomlaEntity.copy</code>.
+     * The rewards are copied too, keeping their IDs.
+     */
+    protected SequenceReward(SequenceReward source, String newId) {
+        super(source, newId);
+
+        List<Reward> rewards = new ArrayList<Reward>(source.mRewards.size());
+        for (Reward reward : source.mRewards) {
+            Reward copy = reward.clone(reward.getID());
+            if (copy != null) {
+                rewards.add(copy);
             }
         }
+        mRewards = StampedRewardList.wrap(rewards, null);
+    }
+
+    @Override
+    protected Reward copy(String newId) {
+        return getClass() == SequenceReward.class ? new SequenceReward(this, newId) : null;
     }
 
     /**
@@ -103,13 +125,37 @@ public class SequenceReward extends Reward {
         return jsonObject;
     }
 
+    /**
+     * Builds the JSON string from the kept JSON strings of the rewards in the sequence,
+     * so only rewards that changed are serialized again.
+     * The rewards mark this string as outdated when they change.
+     */
+    @Override
+    protected String buildJSONString() {
+        mJSONStamp = mRewards.getStamp();
+        mJSONSize = mRewards.size();
+        String[] rewardsJSON = toJSONStrings(this, mRewards);
+        if (getClass() != SequenceReward.class) {
+            // subclasses may serialize more fields
+            return super.buildJSONString();
+        }
+
+        JSONObject jsonObject = super.toJSONObject();
+        return jsonObject != null ? withRewards(jsonObject, rewardsJSON, null) : null;
+    }
+
+    @Override
+    protected boolean isJSONStringCurrent() {
+        return mRewards.getStamp() == mJSONStamp && mRewards.size() == mJSONSize;
+    }
+
     /**
      * Retrieves the last reward that was given from the sequence.
      *
      * @return the last given reward
      */
     public Reward getLastGivenReward() {
-        int idx = RewardStorage.getLastSeqIdxGiven(this.getID());
+        int idx = mStorage.getLastSeqIdxGiven();
         if (idx < 0) {
             return null;
         }
@@ -122,7 +168,7 @@ public class SequenceReward extends Reward {
      * @return <code>true</code> if there are more rewards, <code>false</code> otherwise
      */
     public boolean hasMoreToGive() {
-        return RewardStorage.getLastSeqIdxGiven(this.getID()) < mRewards.size() ;
+        return mStorage.getLastSeqIdxGiven() < mRewards.size() ;
     }
 
     /**
@@ -135,14 +181,44 @@ public class SequenceReward extends Reward {
      */
     public boolean forceNextRewardToGive(Reward reward) {
         for (int i = 0; i < mRewards.size(); i++) {
-            if (mRewards.get(i).getID().equals(reward.getID())) {
-                RewardStorage.setLastSeqIdxGiven(this.getID(), i - 1);
+            if (mRewards.get(i).equals(reward)) {
+                mStorage.setLastSeqIdxGiven(i - 1);
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Moves forward in the sequence by the given number of rewards.
+     * NOTE: doesn't give the skipped rewards
+     *
+     * @param steps the number of rewards to skip
+     * @return the number of rewards actually skipped, which is less than
+     * <code>steps</code> if the end of the sequence was reached
+     */
+    public int advance(int steps) {
+        if (steps <= 0) {
+            return 0;
+        }
+        return mStorage.moveLastSeqIdxGiven(steps, -1, mRewards.size() - 1);
+    }
+
+    /**
+     * Retrieves the next rewards to be given in the sequence, without giving them.
+     *
+     * @param count the maximum number of rewards to retrieve
+     * @return the next (up to) <code>count</code> rewards in the sequence
+     */
+    public List<Reward> peekNextRewards(int count) {
+        int from = Math.max(0, mStorage.getLastSeqIdxGiven() + 1);
+        int to = (int) Math.min((long) from + Math.max(0, count), mRewards.size());
+        if (from >= to) {
+            return new ArrayList<Reward>();
+        }
+        return new ArrayList<Reward>(mRewards.subList(from, to));
+    }
+
     /**
      * Gives the next reward in the sequence.
      *
@@ -152,22 +228,20 @@ public class SequenceReward extends Reward {
      */
     @Override
     protected boolean giveInner() {
-        int idx = RewardStorage.getLastSeqIdxGiven(this.getID());
-        if (idx >= mRewards.size()) {
-            return false; // all rewards in the sequence were given
-        }
-        RewardStorage.setLastSeqIdxGiven(this.getID(), ++idx);
-        return true;
+        // all rewards in the sequence were given if we can't move forward
+        return mStorage.moveLastSeqIdxGiven(1, -1, mRewards.size()) == 1;
     }
 
     @Override
     protected boolean takeInner() {
-        int idx = RewardStorage.getLastSeqIdxGiven(this.getID());
-        if (idx <= 0) {
-            return false; // all rewards in the sequence were taken
-        }
-        RewardStorage.setLastSeqIdxGiven(this.getID(), --idx);
-        return true;
+        // all rewards in the sequence were taken if we can't move back
+        return mStorage.moveLastSeqIdxGiven(-1, 0, mRewards.size()) == -1;
+    }
+
+    @Override
+    List<Reward> getChildRewards() {
+        // the viewed list, so lazily loaded children are registered as they load
+        return mRewards != null ? mRewards.getSource() : null;
     }
 
     /** Setters and Getters **/
@@ -181,5 +255,7 @@ public class SequenceReward extends Reward {
 
     private static final String TAG = "SOOMLA SequenceReward";
 
-    private List<Reward> mRewards;
+    private StampedRewardList mRewards;
+    private int mJSONStamp;
+    private int mJSONSize;
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.rewards;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A view of a list of rewards that counts the changes made through it,
+ * including replacing a reward, so its owner can tell when to refresh
+ * what it derived from the rewards.  The owner can also be told where rewards
+ * are added or removed, to keep data it holds per position in line with them.
+ *
+ * Use <code>wrap</code> to get a view that allows fast random access
+ * only when the viewed list does.
+ */
+class StampedRewardList extends AbstractList<Reward> {
+
+    /**
+     * Gets told where rewards are added to or removed from the list, after the change.
+     */
+    interface Listener {
+        void onRewardAdded(int index);
+        void onRewardRemoved(int index);
+    }
+
+    /**
+     * Creates a view of the given list.
+     *
+     * @param rewards the list to view, changes to the view are made to it
+     * @param listener gets told of the rewards added or removed through the view, or <code>null</code>
+     * @return a view that implements <code>RandomAccess</code> if <code>rewards</code> does
+     */
+    static StampedRewardList wrap(List<Reward> rewards, Listener listener) {
+        return rewards instanceof RandomAccess
+                ? new RandomAccessList(rewards, listener)
+                : new StampedRewardList(rewards, listener);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param rewards the list to view, changes to the view are made to it
+     * @param listener gets told of the rewards added or removed through the view, or <code>null</code>
+     */
+    private StampedRewardList(List<Reward> rewards, Listener listener) {
+        mRewards = rewards;
+        mListener = listener;
+    }
+
+    /**
+     * @return a number that changes whenever the list is changed through this view
+     */
+    int getStamp() {
+        return mStamp;
+    }
+
+    /**
+     * @return the viewed list
+     */
+    List<Reward> getSource() {
+        return mRewards;
+    }
+
+    @Override
+    public Reward get(int index) {
+        return mRewards.get(index);
+    }
+
+    @Override
+    public int size() {
+        return mRewards.size();
+    }
+
+    @Override
+    public Reward set(int index, Reward reward) {
+        Reward previous = mRewards.set(index, reward);
+        mStamp++;
+        return previous;
+    }
+
+    @Override
+    public void add(int index, Reward reward) {
+        mRewards.add(index, reward);
+        mStamp++;
+        modCount++;
+        if (mListener != null) {
+            mListener.onRewardAdded(index);
+        }
+    }
+
+    @Override
+    public Reward remove(int index) {
+        Reward removed = mRewards.remove(index);
+        mStamp++;
+        modCount++;
+        if (mListener != null) {
+            mListener.onRewardRemoved(index);
+        }
+        return removed;
+    }
+
+    private static class RandomAccessList extends StampedRewardList implements RandomAccess {
+        RandomAccessList(List<Reward> rewards, Listener listener) {
+            super(rewards, listener);
+        }
+    }
+
+
+    /** Private Members **/
+
+    private final List<Reward> mRewards;
+    private final Listener mListener;
+    private volatile int mStamp;
+}
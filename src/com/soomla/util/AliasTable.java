@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.util;
+
+import java.util.Random;
+
+/**
+ * Samples indices according to their weights in O(1), using Vose's alias method.
+ * Building the table is O(n).
+ */
+public class AliasTable {
+
+    /**
+     * Constructor
+     *
+     * @param indices the indices to sample from
+     * @param weights the weight of each index, indexed by the values in <code>indices</code>.
+     *                Non-positive weights are never sampled.
+     * @param count how many of <code>indices</code> to use
+     */
+    public AliasTable(int[] indices, double[] weights, int count) {
+        int n = 0;
+        double total = 0;
+        mIndices = new int[count];
+        for (int i = 0; i < count; i++) {
+            double weight = weights[indices[i]];
+            if (weight > 0) {
+                mIndices[n++] = indices[i];
+                total += weight;
+            }
+        }
+        mSize = n;
+        mProbability = new double[n];
+        mAlias = new int[n];
+        if (n == 0) {
+            return;
+        }
+
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[mIndices[i]] * n / total;
+            if (scaled[i] < 1) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            mProbability[less] = scaled[less];
+            mAlias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1;
+            if (scaled[more] < 1) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+        // what's left is 1 up to rounding errors
+        while (largeCount > 0) {
+            mProbability[large[--largeCount]] = 1;
+        }
+        while (smallCount > 0) {
+            mProbability[small[--smallCount]] = 1;
+        }
+    }
+
+    /**
+     * Samples an index.
+     *
+     * @param random the source of randomness
+     * @return one of the table's indices, or -1 if the table is empty
+     */
+    public int sample(Random random) {
+        if (mSize == 0) {
+            return -1;
+        }
+        int column = random.nextInt(mSize);
+        return random.nextDouble() < mProbability[column] ? mIndices[column] : mIndices[mAlias[column]];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+
+    /** Private Members **/
+
+    private final int[] mIndices;
+    private final double[] mProbability;
+    private final int[] mAlias;
+    private final int mSize;
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A canonicalizing pool of immutable values: equal values are replaced by
+ * a single shared instance.  Values are held weakly, so instances no longer
+ * used anywhere else are dropped from the pool.
+ *
+ * The pool is split into stripes selected by the value's hash, each with
+ * its own lock, so threads interning different values rarely wait for
+ * one another.
+ *
+ * @param <T> the type of the pooled values, which must implement
+ *           <code>equals</code> and <code>hashCode</code>
+ */
+public class InternPool<T> {
+
+    public InternPool() {
+        @SuppressWarnings("unchecked")
+        Map<T, WeakReference<T>>[] stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new WeakHashMap<T, WeakReference<T>>();
+        }
+        mStripes = stripes;
+    }
+
+    /**
+     * Retrieves the canonical instance equal to the given value,
+     * making the value itself canonical if there's none yet.
+     *
+     * @param value the value to intern
+     * @return the canonical instance, or <code>null</code> if <code>value</code> is <code>null</code>
+     */
+    public T intern(T value) {
+        if (value == null) {
+            return null;
+        }
+
+        Map<T, WeakReference<T>> stripe = stripeFor(value);
+        synchronized (stripe) {
+            WeakReference<T> ref = stripe.get(value);
+            T canonical = ref != null ? ref.get() : null;
+            if (canonical == null) {
+                stripe.put(value, new WeakReference<T>(value));
+                canonical = value;
+            }
+            return canonical;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<T, WeakReference<T>> stripe : mStripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private Map<T, WeakReference<T>> stripeFor(T value) {
+        int h = value.hashCode();
+        // spread the high bits, as the low ones of some hashes are poorly distributed
+        h ^= (h >>> 16);
+        h ^= (h >>> 8);
+        return mStripes[h & (STRIPES - 1)];
+    }
+
+
+    /** Private Members **/
+
+    // a power of two
+    private static final int STRIPES = 16;
+
+    private final Map<T, WeakReference<T>>[] mStripes;
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.util;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a <code>SoomlaEntity</code> subclass whose <code>JSONObject</code> constructor
+ * should be called without reflection.
+ *
+ * When compiling with the SOOMLA processor (SoomlaAndroidCoreProcessor.jar on the
+ * processor path), a <code>&lt;ClassName&gt;_JSONCreator</code> class is generated next to
+ * each marked class.  <code>JSONFactory</code> picks up the generated creator of a class
+ * the first time it creates an entity of that class, and falls back to reflection
+ * if there's none (e.g. when building without the processor).
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface JSONCreatable {
+}
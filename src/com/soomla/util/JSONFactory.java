@@ -16,6 +16,7 @@
 
 package com.soomla.util;
 
+import com.soomla.SoomlaConfig;
 import com.soomla.SoomlaUtils;
 
 import org.json.JSONException;
@@ -23,14 +24,45 @@ import org.json.JSONObject;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility to create LevelUp objects from JSON
  * (Pretty much one step before using Gson/Jackson)
+ *
+ * Classes are looked up by their JSON class name in the given package, and their
+ * <code>JSONObject</code> constructors are cached per factory.  Classes can also be registered with a
+ * <code>Creator</code>, which skips reflection altogether, or marked with
+ * <code>JSONCreatable</code> to have their creators generated at compile time.
+ * A factory can be used from several threads at once.
  */
 public class JSONFactory<T> {
     public static final String TAG = "SOOMLA JSONFactory";
 
+    /**
+     * Creates an object from its JSON representation.
+     *
+     * @param <T> the type of the created object
+     */
+    public interface Creator<T> {
+        T create(JSONObject jsonObject) throws JSONException;
+    }
+
+    /**
+     * Registers a creator for a class, used instead of reflection
+     * for JSON objects of that class.
+     *
+     * @param fullClassName the class's fully qualified name (e.g. "com.soomla.rewards.BadgeReward"),
+     *                      the JSON class name in the package given to <code>create</code>
+     * @param creator the creator of objects of that class
+     */
+    public void register(String fullClassName, Creator<? extends T> creator) {
+        mCreators.put(fullClassName, creator);
+    }
+
     public T create(JSONObject jsonObject, String packageName) {
 
         if (jsonObject == null) {
@@ -42,15 +74,25 @@ public class JSONFactory<T> {
         try {
 //            SoomlaUtils.LogDebug(TAG, jsonObject.toString());
             String className = jsonObject.getString(com.soomla.data.JSONConsts.SOOM_CLASSNAME);
-            Class<? extends T> clazz = (Class<? extends T>) Class.forName(packageName + "." + className);
-            SoomlaUtils.LogDebug(TAG, "creating with: " + packageName + "." + className);
-            if (clazz != null) {
-                final Constructor<? extends T> jsonCtor = clazz.getDeclaredConstructor(JSONObject.class);
-                t = jsonCtor.newInstance(jsonObject);
+            String fullName = packageName + "." + className;
+            Creator<? extends T> creator = mCreators.get(fullName);
+            if (creator == null) {
+                creator = findGenerated(fullName);
+            }
+            if (creator != null) {
+                return createWith(creator, jsonObject);
+            }
+
+            if (SoomlaConfig.logDebug) {
+                SoomlaUtils.LogDebug(TAG, "creating with: " + fullName);
             }
-            else {
-                SoomlaUtils.LogError(TAG, "unknown class name:" + className);
+            Constructor<? extends T> jsonCtor = mConstructors.get(fullName);
+            if (jsonCtor == null) {
+                Class<? extends T> clazz = (Class<? extends T>) Class.forName(fullName);
+                jsonCtor = clazz.getDeclaredConstructor(JSONObject.class);
+                mConstructors.put(fullName, jsonCtor);
             }
+            t = jsonCtor.newInstance(jsonObject);
 
         } catch (JSONException e) {
             SoomlaUtils.LogError(TAG, "fromJSONObject JSONException:" + e.getMessage());
@@ -69,4 +111,55 @@ public class JSONFactory<T> {
 
         return t;
     }
+
+    /**
+     * Looks for the creator generated for the given class (see <code>JSONCreatable</code>)
+     * and registers it.  Classes without a generated creator are looked for only once.
+     *
+     * @return the generated creator, or <code>null</code> if there's none
+     */
+    @SuppressWarnings("unchecked")
+    private Creator<? extends T> findGenerated(String fullName) {
+        if (mWithoutGenerated.contains(fullName)) {
+            return null;
+        }
+        try {
+            Class<?> clazz = Class.forName(fullName + GENERATED_SUFFIX);
+            Creator<? extends T> creator = (Creator<? extends T>) clazz.newInstance();
+            mCreators.put(fullName, creator);
+            return creator;
+        } catch (ClassNotFoundException e) {
+            // nothing was generated for this class
+        } catch (InstantiationException e) {
+            SoomlaUtils.LogError(TAG, "Malformed generated creator for " + fullName + ": " + e.getMessage());
+        } catch (IllegalAccessException e) {
+            SoomlaUtils.LogError(TAG, "Malformed generated creator for " + fullName + ": " + e.getMessage());
+        } catch (ClassCastException e) {
+            SoomlaUtils.LogError(TAG, "Malformed generated creator for " + fullName + ": " + e.getMessage());
+        }
+        mWithoutGenerated.add(fullName);
+        return null;
+    }
+
+    private T createWith(Creator<? extends T> creator, JSONObject jsonObject) {
+        try {
+            return creator.create(jsonObject);
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "fromJSONObject JSONException:" + e.getMessage());
+        } catch (RuntimeException e) {
+            // as a constructor failing through reflection
+            SoomlaUtils.LogError(TAG, "fromJSONObject creator failed:" + e);
+        }
+        return null;
+    }
+
+
+    /** Private Members **/
+
+    // the suffix of the classes generated by the SOOMLA processor
+    private static final String GENERATED_SUFFIX = "_JSONCreator";
+
+    private final Map<String, Creator<? extends T>> mCreators = new ConcurrentHashMap<String, Creator<? extends T>>();
+    private final Map<String, Constructor<? extends T>> mConstructors = new ConcurrentHashMap<String, Constructor<? extends T>>();
+    private final Set<String> mWithoutGenerated = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 }
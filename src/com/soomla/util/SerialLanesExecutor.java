@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.util;
+
+import com.soomla.SoomlaUtils;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on a backing <code>Executor</code>, keeping tasks of the same
+ * key (a "lane") in submission order, one at a time.  Tasks of different
+ * keys run in parallel.
+ */
+public class SerialLanesExecutor {
+    public static final String TAG = "SOOMLA SerialLanesExecutor";
+
+    /**
+     * Constructor
+     *
+     * @param executor the executor that runs the lanes' tasks
+     */
+    public SerialLanesExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Queues the given task on the lane of the given key.
+     *
+     * @param key the lane's key
+     * @param task the task to run
+     */
+    public void execute(String key, Runnable task) {
+        Lane lane;
+        synchronized (mLanes) {
+            lane = mLanes.get(key);
+            if (lane == null) {
+                lane = new Lane(key);
+                mLanes.put(key, lane);
+            }
+            lane.mTasks.add(task);
+            if (lane.mRunning) {
+                return;
+            }
+            lane.mRunning = true;
+        }
+        mExecutor.execute(lane);
+    }
+
+    private class Lane implements Runnable {
+
+        Lane(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (mLanes) {
+                task = mTasks.poll();
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                SoomlaUtils.LogError(TAG, "Task failed in lane " + mKey + ": " + e.getMessage());
+            } finally {
+                // even if the task threw an Error, so the lane's next tasks still run
+                runNext();
+            }
+        }
+
+        /**
+         * Runs one task at a time and requeues, so a busy lane doesn't starve the others.
+         */
+        private void runNext() {
+            synchronized (mLanes) {
+                if (mTasks.isEmpty()) {
+                    mRunning = false;
+                    mLanes.remove(mKey);
+                    return;
+                }
+            }
+            mExecutor.execute(this);
+        }
+
+        private final String mKey;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+        private boolean mRunning = false;
+    }
+
+
+    /** Private Members **/
+
+    private final Executor mExecutor;
+    private final Map<String, Lane> mLanes = new HashMap<String, Lane>();
+}
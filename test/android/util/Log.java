@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.util;
+
+/**
+ * Replaces the stub in android.jar, which throws on every call, so code that
+ * logs can run in tests on the JVM.  It comes first on the test classpath.
+ */
+public final class Log {
+
+    public static int d(String tag, String msg) {
+        return println("D", tag, msg);
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg);
+    }
+
+    private static int println(String priority, String tag, String msg) {
+        System.out.println(priority + "/" + tag + ": " + msg);
+        return 0;
+    }
+
+    private Log() {
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Table tests of <code>CronExpression</code> parsing and matching.
+ */
+public class CronExpressionTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    // expression, then whether it's valid
+    private static final Object[][] PARSE = {
+            { "* * * * *", true },
+            { " 0  9 * * 1 ", true },
+            { "0,15,30,45 * * * *", true },
+            { "0-30/10 9-17 1-15 1-6 1-5", true },
+            { "5/15 * * * *", true },
+            { "0 0 * JAN,jul mon-FRI", true },
+            { "0 0 * * 7", true },
+            { "@hourly", true },
+            { "@daily", true },
+            { "@midnight", true },
+            { "@weekly", true },
+            { "@monthly", true },
+            { "@yearly", true },
+            { "@annually", true },
+            { "", false },
+            { "* * * *", false },
+            { "* * * * * *", false },
+            { "60 * * * *", false },
+            { "* 24 * * *", false },
+            { "* * 0 * *", false },
+            { "* * 32 * *", false },
+            { "* * * 0 *", false },
+            { "* * * 13 *", false },
+            { "* * * * 8", false },
+            { "*/0 * * * *", false },
+            { "30-10 * * * *", false },
+            { "1,,2 * * * *", false },
+            { "a * * * *", false },
+            { "* * * FOO *", false },
+            { "@never", false },
+    };
+
+    // expression, local time as year, month, day, hour, minute, then whether it matches
+    private static final Object[][] MATCH = {
+            { "* * * * *", 2014, 8, 5, 10, 30, true },
+            { "30 10 * * *", 2014, 8, 5, 10, 30, true },
+            { "30 10 * * *", 2014, 8, 5, 10, 31, false },
+            { "30 10 * * *", 2014, 8, 5, 22, 30, false },
+            { "*/15 * * * *", 2014, 8, 5, 10, 45, true },
+            { "*/15 * * * *", 2014, 8, 5, 10, 46, false },
+            { "0-30/10 * * * *", 2014, 8, 5, 10, 20, true },
+            { "0-30/10 * * * *", 2014, 8, 5, 10, 25, false },
+            { "0-30/10 * * * *", 2014, 8, 5, 10, 40, false },
+            { "5/15 * * * *", 2014, 8, 5, 10, 50, true },
+            { "5/15 * * * *", 2014, 8, 5, 10, 0, false },
+            // Tuesday, Saturday
+            { "0 9-17 * * MON-FRI", 2014, 8, 5, 12, 0, true },
+            { "0 9-17 * * MON-FRI", 2014, 8, 9, 12, 0, false },
+            { "0 9-17 * * MON-FRI", 2014, 8, 5, 18, 0, false },
+            { "0 0 1 JAN *", 2015, 1, 1, 0, 0, true },
+            { "0 0 1 JAN *", 2015, 2, 1, 0, 0, false },
+            // Sunday is both 0 and 7
+            { "0 0 * * 7", 2014, 8, 10, 0, 0, true },
+            { "0 0 * * 0", 2014, 8, 10, 0, 0, true },
+            { "0 0 * * sun", 2014, 8, 11, 0, 0, false },
+            // both days restricted: either one matches (Wednesday the 13th, Friday the 15th, Thursday the 14th)
+            { "0 0 13 * FRI", 2014, 8, 13, 0, 0, true },
+            { "0 0 13 * FRI", 2014, 8, 15, 0, 0, true },
+            { "0 0 13 * FRI", 2014, 8, 14, 0, 0, false },
+            // only the day of the month restricted
+            { "0 0 13 * *", 2014, 8, 15, 0, 0, false },
+            { "@hourly", 2014, 8, 5, 10, 0, true },
+            { "@hourly", 2014, 8, 5, 10, 5, false },
+            { "@daily", 2014, 8, 5, 0, 0, true },
+            { "@daily", 2014, 8, 5, 0, 1, false },
+            { "@weekly", 2014, 8, 10, 0, 0, true },
+            { "@weekly", 2014, 8, 11, 0, 0, false },
+            { "@monthly", 2014, 9, 1, 0, 0, true },
+            { "@monthly", 2014, 9, 2, 0, 0, false },
+            { "@yearly", 2015, 1, 1, 0, 0, true },
+            { "@yearly", 2015, 7, 1, 0, 0, false },
+            // leap day, and the last minute of the year
+            { "0 12 29 2 *", 2016, 2, 29, 12, 0, true },
+            { "59 23 31 12 *", 2014, 12, 31, 23, 59, true },
+    };
+
+    @Test
+    public void testParse() {
+        for (Object[] row : PARSE) {
+            String expression = (String) row[0];
+            CronExpression cron = CronExpression.parse(expression);
+            if ((Boolean) row[1]) {
+                assertNotNull(expression, cron);
+                assertEquals(expression, expression.trim(), cron.toString());
+            } else {
+                assertNull(expression, cron);
+            }
+        }
+        assertNull(CronExpression.parse(null));
+    }
+
+    @Test
+    public void testMatches() {
+        for (Object[] row : MATCH) {
+            String expression = (String) row[0];
+            long time = time(UTC, (Integer) row[1], (Integer) row[2], (Integer) row[3], (Integer) row[4], (Integer) row[5]);
+            assertEquals(expression + " at " + row[1] + "-" + row[2] + "-" + row[3] + " " + row[4] + ":" + row[5],
+                    row[6], CronExpression.parse(expression).matches(time, UTC));
+        }
+    }
+
+    @Test
+    public void testMatchesInTimeZone() {
+        TimeZone tokyo = TimeZone.getTimeZone("Asia/Tokyo");
+        CronExpression cron = CronExpression.parse("0 9 * * *");
+        long nineInTokyo = time(tokyo, 2014, 8, 5, 9, 0);
+        assertEquals(true, cron.matches(nineInTokyo, tokyo));
+        assertEquals(false, cron.matches(nineInTokyo, UTC));
+        assertEquals(true, cron.matches(time(UTC, 2014, 8, 5, 9, 0), UTC));
+    }
+
+    @Test
+    public void testMatchesAcrossDaylightSavingTime() {
+        // New York moved from UTC-5 to UTC-4 on 2014-03-09 at 2:00
+        TimeZone newYork = TimeZone.getTimeZone("America/New_York");
+        CronExpression cron = CronExpression.parse("30 9 * * *");
+        assertEquals(true, cron.matches(time(newYork, 2014, 3, 8, 9, 30), newYork));
+        assertEquals(true, cron.matches(time(newYork, 2014, 3, 10, 9, 30), newYork));
+        assertEquals(false, cron.matches(time(newYork, 2014, 3, 10, 9, 30) + 60 * 60 * 1000, newYork));
+    }
+
+    @Test
+    public void testEquality() {
+        assertEquals(CronExpression.parse("0 0 * * *"), CronExpression.parse("0 0 * * *"));
+        assertEquals(CronExpression.parse("0 0 * * *").hashCode(), CronExpression.parse("0 0 * * *").hashCode());
+    }
+
+    static long time(TimeZone timeZone, int year, int month, int day, int hour, int minute) {
+        Calendar calendar = new GregorianCalendar(timeZone);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+}
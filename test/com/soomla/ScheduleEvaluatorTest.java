@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares <code>ScheduleEvaluator</code> with the approval logic it replaced
+ * (<code>legacyApprove</code>, as <code>Schedule.approve</code> was before schedules were compiled),
+ * over a table of schedules, activation counts and times.
+ */
+public class ScheduleEvaluatorTest {
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long DAY = 24 * 60 * MINUTE;
+
+    private static final String[] TIME_ZONES = { "UTC", "America/New_York", "Asia/Kolkata" };
+
+    @Before
+    public void setUp() {
+        mDefaultTimeZone = TimeZone.getDefault();
+        mDefaultClock = Clock.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mDefaultTimeZone);
+        Clock.setDefault(mDefaultClock);
+    }
+
+    @Test
+    public void testApproveMatchesLegacy() {
+        for (String id : TIME_ZONES) {
+            TimeZone timeZone = TimeZone.getTimeZone(id);
+            // the legacy logic reads the fields in the default time zone, the evaluator in the clock's
+            TimeZone.setDefault(timeZone);
+            Clock.setDefault(new Clock.ManualClock(0, timeZone));
+
+            // a month and a half around a month's end and a daylight saving time change (in New York)
+            long from = CronExpressionTest.time(timeZone, 2014, 10, 15, 0, 0);
+            long to = from + 45 * DAY;
+            for (Object[] row : schedules(timeZone)) {
+                Schedule schedule = (Schedule) row[0];
+                for (int activations = 0; activations <= 3; activations++) {
+                    for (long now = from; now < to; now += 7 * MINUTE + 13 * 1000) {
+                        assertEquals(row[1] + " in " + id + " after " + activations + " at " + new Date(now),
+                                legacyApprove(schedule, activations, now),
+                                schedule.getEvaluator().approve(activations, now));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testApproveAllMatchesApprove() {
+        TimeZone timeZone = TimeZone.getTimeZone("America/New_York");
+        Clock.setDefault(new Clock.ManualClock(0, timeZone));
+
+        long from = CronExpressionTest.time(timeZone, 2014, 10, 15, 0, 0);
+        long[] timestamps = new long[5000];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = from + i * 11 * MINUTE;
+        }
+        List<Schedule> schedules = new ArrayList<Schedule>();
+        for (Object[] row : schedules(timeZone)) {
+            schedules.add((Schedule) row[0]);
+        }
+        schedules.add(new Schedule(null, CronExpression.parse("*/20 9-17 * * MON-FRI"), 0));
+        int[] activations = new int[schedules.size()];
+        for (int i = 0; i < activations.length; i++) {
+            activations[i] = i % 3;
+        }
+
+        BitSet[] approved = Schedule.approveAll(schedules, activations, timestamps);
+        for (int s = 0; s < schedules.size(); s++) {
+            for (int i = 0; i < timestamps.length; i++) {
+                assertEquals("schedule " + s + " at " + new Date(timestamps[i]),
+                        schedules.get(s).approve(activations[s], timestamps[i]), approved[s].get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testCronSchedule() {
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        Clock.setDefault(new Clock.ManualClock(0, utc));
+        CronExpression cron = CronExpression.parse("0-29 9 * * MON");
+        Schedule schedule = new Schedule(null, cron, 2);
+
+        long from = CronExpressionTest.time(utc, 2014, 8, 1, 0, 0);
+        for (long now = from; now < from + 15 * DAY; now += MINUTE) {
+            assertEquals(new Date(now).toString(), cron.matches(now, utc), schedule.approve(1, now));
+            assertEquals(false, schedule.approve(2, now));
+        }
+    }
+
+    /**
+     * @return rows of a schedule and its description
+     */
+    private static Object[][] schedules(TimeZone timeZone) {
+        long start = CronExpressionTest.time(timeZone, 2014, 10, 20, 10, 15);
+        long end = CronExpressionTest.time(timeZone, 2014, 10, 20, 10, 45);
+        // spans days (and months) so the fields of its end are before the ones of its start
+        long longStart = CronExpressionTest.time(timeZone, 2014, 10, 30, 22, 10);
+        long longEnd = CronExpressionTest.time(timeZone, 2014, 11, 2, 3, 50);
+
+        List<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(new Object[] { Schedule.AnyTimeOnce(), "any time once" });
+        rows.add(new Object[] { Schedule.AnyTimeLimited(3), "any time 3 times" });
+        rows.add(new Object[] { Schedule.AnyTimeUnLimited(), "any time" });
+        for (Schedule.Recurrence recurrence : Schedule.Recurrence.values()) {
+            for (int limit = 0; limit <= 2; limit += 2) {
+                rows.add(new Object[] { new Schedule(new Date(start), new Date(end), recurrence, limit),
+                        recurrence + " short range, limit " + limit });
+                rows.add(new Object[] { new Schedule(Arrays.asList(
+                        new Schedule.DateTimeRange(start, end),
+                        new Schedule.DateTimeRange(longStart, longEnd)), recurrence, limit),
+                        recurrence + " two ranges, limit " + limit });
+            }
+        }
+        rows.add(new Object[] { new Schedule(Collections.<Schedule.DateTimeRange>emptyList(),
+                Schedule.Recurrence.EVERY_DAY, 1), "no ranges" });
+        return rows.toArray(new Object[rows.size()][]);
+    }
+
+    /**
+     * <code>Schedule.approve</code> before schedules were compiled, reading the
+     * calendar fields of each time in the default time zone.
+     */
+    private static boolean legacyApprove(Schedule schedule, int activationTimes, long nowMillis) {
+        Date now = new Date(nowMillis);
+        int activationLimit = schedule.getActivationLimit();
+        List<Schedule.DateTimeRange> timeRanges = schedule.getTimeRanges();
+        Schedule.Recurrence recurrence = schedule.getRequiredRecurrence();
+
+        if (activationLimit < 1 && (timeRanges == null || timeRanges.size() == 0)) {
+            return true;
+        }
+        if (activationLimit > 0 && activationTimes >= activationLimit) {
+            return false;
+        }
+        if (timeRanges == null || timeRanges.size() == 0) {
+            return true;
+        }
+
+        for (Schedule.DateTimeRange dtr : timeRanges) {
+            if (now.after(dtr.getStart()) && now.before(dtr.getEnd())) {
+                return true;
+            }
+        }
+        if (recurrence == Schedule.Recurrence.NONE) {
+            return false;
+        }
+
+        for (Schedule.DateTimeRange dtr : timeRanges) {
+            Calendar nowCalendar = new GregorianCalendar();
+            nowCalendar.setTime(now);
+            Calendar startCalendar = new GregorianCalendar();
+            startCalendar.setTime(dtr.getStart());
+            Calendar endCalendar = new GregorianCalendar();
+            endCalendar.setTime(dtr.getEnd());
+            if (nowCalendar.get(Calendar.MINUTE) >= startCalendar.get(Calendar.MINUTE)
+                    && nowCalendar.get(Calendar.MINUTE) <= endCalendar.get(Calendar.MINUTE)) {
+                if (recurrence == Schedule.Recurrence.EVERY_HOUR) {
+                    return true;
+                }
+                if (nowCalendar.get(Calendar.HOUR) >= startCalendar.get(Calendar.HOUR)
+                        && nowCalendar.get(Calendar.HOUR) <= endCalendar.get(Calendar.HOUR)) {
+                    if (recurrence == Schedule.Recurrence.EVERY_DAY) {
+                        return true;
+                    }
+                    if (nowCalendar.get(Calendar.DAY_OF_WEEK) >= startCalendar.get(Calendar.DAY_OF_WEEK)
+                            && nowCalendar.get(Calendar.DAY_OF_WEEK) <= endCalendar.get(Calendar.DAY_OF_WEEK)) {
+                        if (recurrence == Schedule.Recurrence.EVERY_WEEK) {
+                            return true;
+                        }
+                        if (nowCalendar.get(Calendar.DAY_OF_MONTH) >= startCalendar.get(Calendar.DAY_OF_MONTH)
+                                && nowCalendar.get(Calendar.DAY_OF_MONTH) <= endCalendar.get(Calendar.DAY_OF_MONTH)) {
+                            if (recurrence == Schedule.Recurrence.EVERY_MONTH) {
+                                return true;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /** Private Members **/
+
+    private TimeZone mDefaultTimeZone;
+    private Clock mDefaultClock;
+}
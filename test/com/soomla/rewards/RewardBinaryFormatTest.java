@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.rewards;
+
+import com.soomla.CronExpression;
+import com.soomla.Schedule;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of reward catalogs through <code>RewardBinaryFormat</code>.
+ */
+public class RewardBinaryFormatTest {
+
+    @Test
+    public void testRoundTripBadge() {
+        BadgeReward badge = new BadgeReward("bin_badge", "Badge", "http://icon");
+        badge.setLoadedState("a badge", Schedule.AnyTimeLimited(3));
+        BadgeReward noIcon = new BadgeReward("bin_badge_no_icon", "No Icon");
+        noIcon.setLoadedState("", null);
+
+        List<Reward> read = roundTrip(Arrays.<Reward>asList(badge, noIcon));
+
+        assertEquals(2, read.size());
+        assertRewardEquals(badge, read.get(0));
+        assertRewardEquals(noIcon, read.get(1));
+    }
+
+    @Test
+    public void testRoundTripSchedules() {
+        long start = 1414000000000L;
+        List<Schedule> schedules = Arrays.asList(
+                Schedule.AnyTimeOnce(),
+                Schedule.AnyTimeUnLimited(),
+                Schedule.AnyTimeLimitedPerWindow(2, 60 * 60 * 1000L),
+                new Schedule(null, CronExpression.parse("*/20 9-17 * * MON-FRI"), 5),
+                new Schedule(Arrays.asList(new Schedule.DateTimeRange(start, start + 1000),
+                        new Schedule.DateTimeRange(start + 5000, start + 9000)), Schedule.Recurrence.EVERY_WEEK, 0),
+                new Schedule(Collections.<Schedule.DateTimeRange>emptyList(), Schedule.Recurrence.NONE, 1));
+        List<Reward> rewards = new ArrayList<Reward>();
+        for (int i = 0; i < schedules.size(); i++) {
+            BadgeReward badge = new BadgeReward("bin_sched_" + i, "Scheduled");
+            badge.setLoadedState("", schedules.get(i));
+            rewards.add(badge);
+        }
+
+        List<Reward> read = roundTrip(rewards);
+
+        for (int i = 0; i < schedules.size(); i++) {
+            Schedule schedule = read.get(i).getSchedule();
+            assertEquals("schedule " + i, schedules.get(i), schedule);
+            assertEquals("schedule " + i, schedules.get(i).getWindowLimit(), schedule.getWindowLimit());
+            assertEquals("schedule " + i, schedules.get(i).getWindowMillis(), schedule.getWindowMillis());
+            assertEquals("schedule " + i, schedules.get(i).getCronRecurrence(), schedule.getCronRecurrence());
+        }
+        // equal schedules are shared
+        assertSame(Schedule.AnyTimeOnce(), read.get(0).getSchedule());
+    }
+
+    @Test
+    public void testRoundTripNested() {
+        BadgeReward first = new BadgeReward("bin_nested_first", "First", "http://first");
+        BadgeReward second = new BadgeReward("bin_nested_second", "Second");
+        RandomReward random = new RandomReward("bin_nested_random", "Random",
+                new ArrayList<Reward>(Arrays.<Reward>asList(first, second)), new double[] { 2.5, 0.5 });
+        SequenceReward sequence = new SequenceReward("bin_nested_sequence", "Sequence",
+                new ArrayList<Reward>(Arrays.<Reward>asList(random, new BadgeReward("bin_nested_last", "Last"))));
+        sequence.setLoadedState("in order", Schedule.AnyTimeUnLimited());
+
+        List<Reward> read = roundTrip(Collections.<Reward>singletonList(sequence));
+
+        SequenceReward readSequence = (SequenceReward) read.get(0);
+        assertRewardEquals(sequence, readSequence);
+        assertEquals(2, readSequence.getRewards().size());
+        RandomReward readRandom = (RandomReward) readSequence.getRewards().get(0);
+        assertRewardEquals(random, readRandom);
+        assertEquals(2, readRandom.getRewards().size());
+        assertEquals(2.5, readRandom.getWeight(0), 0);
+        assertEquals(0.5, readRandom.getWeight(1), 0);
+        assertRewardEquals(first, readRandom.getRewards().get(0));
+        assertRewardEquals(second, readRandom.getRewards().get(1));
+        assertRewardEquals(sequence.getRewards().get(1), readSequence.getRewards().get(1));
+    }
+
+    @Test
+    public void testRoundTripIsStable() {
+        RandomReward random = new RandomReward("bin_stable_random", "Random",
+                new ArrayList<Reward>(Arrays.<Reward>asList(new BadgeReward("bin_stable_badge", "Badge", "icon"))),
+                new double[] { 3 });
+        byte[] bytes = RewardBinaryFormat.write(Collections.<Reward>singletonList(random));
+
+        List<Reward> read = RewardBinaryFormat.read(ByteBuffer.wrap(bytes));
+
+        assertTrue(Arrays.equals(bytes, RewardBinaryFormat.write(read)));
+    }
+
+    @Test
+    public void testWriteToStreamAndReadFile() throws IOException {
+        BadgeReward badge = new BadgeReward("bin_file_badge", "Badge", "icon");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RewardBinaryFormat.write(Collections.<Reward>singletonList(badge), out);
+
+        File file = File.createTempFile("rewards", ".bin");
+        try {
+            FileOutputStream fileOut = new FileOutputStream(file);
+            try {
+                fileOut.write(out.toByteArray());
+            } finally {
+                fileOut.close();
+            }
+            List<Reward> read = RewardBinaryFormat.read(file);
+            assertNotNull(read);
+            assertRewardEquals(badge, read.get(0));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testEmptyCatalog() {
+        List<Reward> read = roundTrip(Collections.<Reward>emptyList());
+        assertEquals(0, read.size());
+    }
+
+    @Test
+    public void testInvalidCatalog() {
+        BadgeReward badge = new BadgeReward("bin_invalid_badge", "Badge", "icon");
+        byte[] bytes = RewardBinaryFormat.write(Collections.<Reward>singletonList(badge));
+
+        assertNull(RewardBinaryFormat.read(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 2))));
+        byte[] badMagic = bytes.clone();
+        badMagic[0] = 'X';
+        assertNull(RewardBinaryFormat.read(ByteBuffer.wrap(badMagic)));
+        assertNull(RewardBinaryFormat.read(ByteBuffer.wrap(new byte[0])));
+    }
+
+    private static List<Reward> roundTrip(List<Reward> rewards) {
+        List<Reward> read = RewardBinaryFormat.read(ByteBuffer.wrap(RewardBinaryFormat.write(rewards)));
+        assertNotNull(read);
+        return read;
+    }
+
+    private static void assertRewardEquals(Reward expected, Reward actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getID(), actual.getID());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getDescription(), actual.getDescription());
+        assertEquals(expected.getSchedule(), actual.getSchedule());
+        if (expected instanceof BadgeReward) {
+            assertEquals(((BadgeReward) expected).getIconUrl(), ((BadgeReward) actual).getIconUrl());
+        }
+    }
+}